@@ -0,0 +1,69 @@
+package net.filebot.ant.spk;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import net.filebot.ant.spk.util.Digest;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DigestBenchmark {
+
+	@Param({ Payload.SMALL, Payload.LARGE })
+	String payload;
+
+	File dir;
+	File[] files;
+
+	@Setup
+	public void setup() throws IOException {
+		dir = Payload.create(payload);
+		files = Payload.files(dir);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		Payload.delete(dir);
+	}
+
+	@Benchmark
+	public void md5(Blackhole bh) {
+		for (File f : files) {
+			bh.consume(Digest.md5(f));
+		}
+	}
+
+	@Benchmark
+	public void sha256(Blackhole bh) {
+		for (File f : files) {
+			bh.consume(Digest.sha256(f));
+		}
+	}
+
+	@Benchmark
+	public void md5AndSha256(Blackhole bh) {
+		for (File f : files) {
+			bh.consume(Digest.digest(f, true, "MD5", "SHA-256"));
+		}
+	}
+
+}
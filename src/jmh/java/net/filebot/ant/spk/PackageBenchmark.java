@@ -0,0 +1,87 @@
+package net.filebot.ant.spk;
+
+import static java.util.Collections.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.taskdefs.Tar.TarFileSet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Write package.tgz (tar and compression) for each compression method into a null stream.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+public class PackageBenchmark {
+
+	@Param({ Payload.SMALL, Payload.LARGE })
+	String payload;
+
+	@Param({ "none", "gzip", "xz" })
+	Compression compression;
+
+	@Param({ "1", "4" })
+	int threads;
+
+	File dir;
+	PackageTask task;
+	List<TarFileSet> files;
+
+	@Setup
+	public void setup() throws IOException {
+		dir = Payload.create(payload);
+
+		task = new PackageTask();
+		task.setProject(new Project());
+		task.setCompression(compression);
+		task.setThreads(threads);
+
+		TarFileSet fileset = new TarFileSet();
+		fileset.setDir(dir);
+		files = singletonList(fileset);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		Payload.delete(dir);
+	}
+
+	@Benchmark
+	public long compress() throws IOException {
+		return task.compress(new NullOutputStream(), files, true);
+	}
+
+	static class NullOutputStream extends OutputStream {
+
+		@Override
+		public void write(int b) {
+			// discard
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			// discard
+		}
+	}
+
+}
@@ -0,0 +1,73 @@
+package net.filebot.ant.spk;
+
+import static java.nio.charset.StandardCharsets.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * Synthetic package content, i.e. lots of small compressible text files or a few large files that are half text and half random (already compressed) data.
+ */
+public class Payload {
+
+	public static final String SMALL = "small";
+	public static final String LARGE = "large";
+
+	private static final String[] WORDS = { "synology", "package", "install", "start", "stop", "status", "echo", "export", "PATH", "bin", "lib", "share", "var", "log", "config", "if", "then", "fi", "for", "do", "done", "$SYNOPKG_PKGDEST", "/usr/local", "exit", "0", "1" };
+
+	public static File create(String payload) throws IOException {
+		File dir = Files.createTempDirectory("payload").toFile();
+		Random random = new Random(42);
+
+		switch (payload) {
+		case SMALL:
+			for (int i = 0; i < 2000; i++) {
+				write(new File(dir, "dir" + i % 20 + "/file" + i + ".sh"), text(random, 4 * 1024));
+			}
+			break;
+		case LARGE:
+			for (int i = 0; i < 4; i++) {
+				byte[] bytes = new byte[8 * 1024 * 1024];
+				random.nextBytes(bytes);
+				byte[] text = text(random, bytes.length / 2);
+				System.arraycopy(text, 0, bytes, 0, text.length);
+				write(new File(dir, "lib/large" + i + ".bin"), bytes);
+			}
+			break;
+		default:
+			throw new IllegalArgumentException(payload);
+		}
+		return dir;
+	}
+
+	public static File[] files(File dir) throws IOException {
+		try (Stream<Path> paths = Files.walk(dir.toPath())) {
+			return paths.filter(Files::isRegularFile).sorted().map(Path::toFile).toArray(File[]::new);
+		}
+	}
+
+	public static void delete(File dir) throws IOException {
+		try (Stream<Path> paths = Files.walk(dir.toPath())) {
+			paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+		}
+	}
+
+	public static byte[] text(Random random, int length) {
+		StringBuilder text = new StringBuilder(length + 32);
+		while (text.length() < length) {
+			text.append(WORDS[random.nextInt(WORDS.length)]).append(random.nextInt(8) == 0 ? '\n' : ' ');
+		}
+		return text.substring(0, length).getBytes(UTF_8);
+	}
+
+	private static void write(File file, byte[] bytes) throws IOException {
+		file.getParentFile().mkdirs();
+		Files.write(file.toPath(), bytes);
+	}
+
+}
@@ -0,0 +1,107 @@
+package net.filebot.ant.spk;
+
+import static java.nio.charset.StandardCharsets.*;
+import static java.util.Collections.*;
+import static net.filebot.ant.spk.RepositoryTask.*;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.tools.ant.Project;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parse SPK INFO files into package source fields and write the package source index.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RepositoryBenchmark {
+
+	@Param({ "10", "1000" })
+	int packages;
+
+	RepositoryTask task;
+	List<byte[]> infoFiles;
+	List<Map<String, Object>> index;
+
+	@Setup
+	public void setup() {
+		task = new RepositoryTask();
+		task.setProject(new Project());
+
+		infoFiles = new ArrayList<byte[]>();
+		index = new ArrayList<Map<String, Object>>();
+
+		for (int i = 0; i < packages; i++) {
+			StringBuilder info = new StringBuilder();
+			info.append("package=\"package").append(i).append("\"\n");
+			info.append("version=\"1.0.").append(i).append("\"\n");
+			info.append("arch=\"x86_64 aarch64 armv7\"\n");
+			info.append("os_min_ver=\"7.0-40000\"\n");
+			info.append("displayname=\"Package ").append(i).append("\"\n");
+			info.append("description=\"").append(new String(Payload.text(new Random(i), 400), UTF_8).replace('\n', ' ')).append("\"\n");
+			info.append("maintainer=\"ant-spk\"\n");
+			info.append("maintainer_url=\"https://github.com/rednoah/ant-spk\"\n");
+			info.append("startable=\"yes\"\n");
+			info.append("silent_install=\"yes\"\n");
+			info.append("silent_upgrade=\"yes\"\n");
+			info.append("install_dep_packages=\"Java8\"\n");
+			info.append("package_thumbnail_url=\"https://example.org/").append(i).append("/thumbnail_72.png, https://example.org/").append(i).append("/thumbnail_256.png\"\n");
+			info.append("checksum=\"0123456789abcdef0123456789abcdef\"\n");
+			infoFiles.add(info.toString().getBytes(UTF_8));
+
+			Map<String, Object> p = importInfo(infoFiles.get(i));
+			p.put(LINK, "https://example.org/package" + i + ".spk");
+			p.put(MD5, "0123456789abcdef0123456789abcdef");
+			p.put(SHA256, "0123456789abcdef0123456789abcdef0123456789abcdef0123456789abcdef");
+			p.put(SIZE, 1024L * 1024 * i);
+			index.add(p);
+		}
+	}
+
+	private Map<String, Object> importInfo(byte[] bytes) {
+		Map<String, Object> p = new LinkedHashMap<String, Object>();
+		readInfo(bytes).forEach((k, v) -> task.importSpkInfo(p, k, v));
+		return p;
+	}
+
+	@Benchmark
+	public List<Map<String, Object>> importSpkInfo() {
+		List<Map<String, Object>> packages = new ArrayList<Map<String, Object>>(infoFiles.size());
+		for (byte[] bytes : infoFiles) {
+			packages.add(importInfo(bytes));
+		}
+		return packages;
+	}
+
+	@Benchmark
+	public int writeIndex() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(1024 * 1024);
+		task.writeIndex(out, emptySet(), json -> {
+			for (Map<String, Object> p : index) {
+				json.accept(toJson(p).build());
+			}
+		});
+		return out.size();
+	}
+
+}
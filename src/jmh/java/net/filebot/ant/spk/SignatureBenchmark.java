@@ -0,0 +1,97 @@
+package net.filebot.ant.spk;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.security.KeyPairGenerator;
+import java.security.SignatureException;
+import java.util.Date;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.bouncycastle.bcpg.HashAlgorithmTags;
+import org.bouncycastle.openpgp.PGPEncryptedData;
+import org.bouncycastle.openpgp.PGPException;
+import org.bouncycastle.openpgp.PGPKeyPair;
+import org.bouncycastle.openpgp.PGPPublicKey;
+import org.bouncycastle.openpgp.PGPSecretKey;
+import org.bouncycastle.openpgp.PGPSignature;
+import org.bouncycastle.openpgp.operator.PGPDigestCalculator;
+import org.bouncycastle.openpgp.operator.jcajce.JcaPGPContentSignerBuilder;
+import org.bouncycastle.openpgp.operator.jcajce.JcaPGPDigestCalculatorProviderBuilder;
+import org.bouncycastle.openpgp.operator.jcajce.JcaPGPKeyPair;
+import org.bouncycastle.openpgp.operator.jcajce.JcePBESecretKeyEncryptorBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.filebot.ant.spk.pgp.OpenPGPSignature;
+
+/**
+ * Sign 16 MB of data with a throwaway RSA key for each hash algorithm and provider.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SignatureBenchmark {
+
+	@Param({ "SHA1", "SHA256", "SHA512" })
+	String digest;
+
+	@Param({ "default", "BC" })
+	String provider;
+
+	File secring;
+	String keyId;
+	char[] password = "benchmark".toCharArray();
+
+	byte[] data = new byte[16 * 1024 * 1024];
+
+	@Setup
+	public void setup() throws Exception {
+		new Random(42).nextBytes(data);
+
+		// make sure the BouncyCastle provider is registered
+		Class.forName(OpenPGPSignature.class.getName());
+
+		KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+		generator.initialize(2048);
+		PGPKeyPair keyPair = new JcaPGPKeyPair(PGPPublicKey.RSA_GENERAL, generator.generateKeyPair(), new Date());
+
+		PGPDigestCalculator sha1 = new JcaPGPDigestCalculatorProviderBuilder().build().get(HashAlgorithmTags.SHA1);
+		JcaPGPContentSignerBuilder certification = new JcaPGPContentSignerBuilder(keyPair.getPublicKey().getAlgorithm(), HashAlgorithmTags.SHA1);
+		PGPSecretKey secretKey = new PGPSecretKey(PGPSignature.DEFAULT_CERTIFICATION, keyPair, "benchmark", sha1, null, null, certification, new JcePBESecretKeyEncryptorBuilder(PGPEncryptedData.AES_128, sha1).build(password));
+
+		secring = File.createTempFile("secring", ".gpg");
+		try (OutputStream out = Files.newOutputStream(secring.toPath())) {
+			secretKey.encode(out);
+		}
+		keyId = String.format("%08X", secretKey.getKeyID() & 0xFFFFFFFFL);
+	}
+
+	@TearDown
+	public void tearDown() {
+		secring.delete();
+	}
+
+	@Benchmark
+	public byte[] sign() throws IOException, PGPException, SignatureException {
+		OpenPGPSignature signature = OpenPGPSignature.createSignatureGenerator(keyId, secring, password, OpenPGPSignature.getHashAlgorithm(digest), provider.equals("default") ? null : provider);
+		signature.update(data, 0, data.length);
+		return signature.generate();
+	}
+
+}
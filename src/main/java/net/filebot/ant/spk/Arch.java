@@ -0,0 +1,29 @@
+package net.filebot.ant.spk;
+
+import static net.filebot.ant.spk.Info.*;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.tools.ant.taskdefs.Tar.TarFileSet;
+
+public class Arch {
+
+	Map<String, String> infoList = new LinkedHashMap<String, String>();
+	List<TarFileSet> packageFiles = new ArrayList<TarFileSet>();
+
+	public void setName(String name) {
+		infoList.put(ARCH, name);
+	}
+
+	public void addConfiguredInfo(Info info) {
+		infoList.put(info.name, info.value);
+	}
+
+	public void addConfiguredPackage(TarFileSet files) {
+		packageFiles.add(files);
+	}
+
+}
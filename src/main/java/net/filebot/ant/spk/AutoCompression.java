@@ -0,0 +1,219 @@
+package net.filebot.ant.spk;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.types.Resource;
+
+import net.filebot.ant.spk.util.CountingOutputStream;
+
+/**
+ * Estimate the compression ratio and compression time of each gzip level and xz preset from evenly spaced samples of the package files, and select the fastest setting that meets the given ratio target.
+ */
+public class AutoCompression {
+
+	public static final int SAMPLE_SIZE = 1024 * 1024;
+	public static final int CHUNK_SIZE = 64 * 1024;
+
+	// don't spend twice the time for less than 1% smaller output
+	public static final double MARGINAL_GAIN = 0.01;
+
+	private static final Setting[] CANDIDATES = { new Setting(Compression.gzip, 1), new Setting(Compression.gzip, 6), new Setting(Compression.gzip, 9), new Setting(Compression.xz, 0), new Setting(Compression.xz, 3), new Setting(Compression.xz, 6) };
+
+	private final List<Setting> settings = new ArrayList<Setting>();
+	private long size = 0;
+
+	/**
+	 * Sample the given resources and estimate ratio and time for each candidate setting, i.e. gzip only unless xz is supported by the target DSM, and only the given gzip level or xz preset if not default.
+	 */
+	public AutoCompression(Collection<Resource> resources, boolean xz, int level) throws IOException {
+		byte[] sample = sample(resources);
+
+		for (Setting candidate : level < 0 ? CANDIDATES : new Setting[] { new Setting(Compression.gzip, level), new Setting(Compression.xz, level) }) {
+			if (candidate.compression == Compression.xz && !xz) {
+				continue;
+			}
+
+			try {
+				// warm up and measure the fixed cost of creating the compressor (e.g. allocating the xz dictionary), which should not be scaled up to the total size
+				compress(candidate, sample, Math.min(sample.length, CHUNK_SIZE));
+				long overhead = compress(candidate, sample, 0)[1];
+
+				long[] result = compress(candidate, sample, sample.length);
+				double ratio = sample.length == 0 ? 1 : (double) result[0] / sample.length;
+				long time = sample.length == 0 ? 0 : overhead + (long) ((double) Math.max(0, result[1] - overhead) * size / sample.length);
+				settings.add(new Setting(candidate.compression, candidate.level, ratio, time));
+			} catch (BuildException e) {
+				// xz compression requires the XZ for Java library
+				continue;
+			}
+		}
+	}
+
+	private long[] compress(Setting setting, byte[] sample, int length) throws IOException {
+		CountingOutputStream out = new CountingOutputStream(new OutputStream() {
+
+			@Override
+			public void write(int b) {
+				// discard
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+				// discard
+			}
+		});
+
+		long start = System.nanoTime();
+		try (OutputStream compressor = setting.compression.compress(out, setting.level)) {
+			compressor.write(sample, 0, length);
+		}
+		return new long[] { out.getCount(), System.nanoTime() - start };
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	public List<Setting> getSettings() {
+		return settings;
+	}
+
+	/**
+	 * Select the fastest setting with a compression ratio (compressed size / uncompressed size) below the given target. If no setting meets the target, step up from the fastest setting to slower settings only as long as each step saves at least 1% per doubling of the estimated time, or select the first setting if not measured. Settings are ranked by measured time, or in gzip level and xz preset order (i.e. the same setting for the same files) if not measured.
+	 */
+	public Setting select(double target, boolean measured) {
+		List<Setting> ranking = new ArrayList<Setting>(settings);
+		if (measured) {
+			ranking.sort(Comparator.comparingLong(s -> s.time));
+		}
+
+		Setting setting = ranking.stream().filter(s -> s.ratio <= target).findFirst().orElse(null);
+		if (setting != null || ranking.isEmpty()) {
+			return setting;
+		}
+
+		// estimated times vary from build to build, so the cheapest setting is the only reproducible fallback
+		if (!measured) {
+			return ranking.get(0);
+		}
+
+		setting = ranking.get(0);
+		for (Setting s : ranking) {
+			double doublings = Math.log((double) Math.max(1, s.time) / Math.max(1, setting.time)) / Math.log(2);
+			if (setting.ratio - s.ratio >= MARGINAL_GAIN * Math.max(1, doublings)) {
+				setting = s;
+			}
+		}
+		return setting;
+	}
+
+	/**
+	 * Select the setting with the best compression ratio.
+	 */
+	public Setting best() {
+		return settings.stream().min(Comparator.comparingDouble((Setting s) -> s.ratio).thenComparingLong(s -> s.time)).orElse(null);
+	}
+
+	private byte[] sample(Collection<Resource> resources) throws IOException {
+		for (Resource r : resources) {
+			if (!r.isDirectory()) {
+				size += r.getSize();
+			}
+		}
+
+		// take a chunk at evenly spaced offsets as if all files were one continuous stream
+		long stride = Math.max(CHUNK_SIZE, size / (SAMPLE_SIZE / CHUNK_SIZE));
+		long next = 0;
+		long position = 0;
+
+		ByteArrayOutputStream sample = new ByteArrayOutputStream((int) Math.min(size, SAMPLE_SIZE + CHUNK_SIZE));
+		byte[] buffer = new byte[CHUNK_SIZE];
+
+		for (Resource r : resources) {
+			if (r.isDirectory() || r.getSize() <= 0) {
+				continue;
+			}
+
+			if (next < position + r.getSize()) {
+				try (InputStream in = r.getInputStream()) {
+					long offset = 0;
+					while (next < position + r.getSize()) {
+						for (long n = 0; offset < next - position && (n = in.skip(next - position - offset)) > 0;) {
+							offset += n;
+						}
+
+						int length = 0;
+						for (int n = 0; length < CHUNK_SIZE && offset + length < r.getSize() && (n = in.read(buffer, length, (int) Math.min(CHUNK_SIZE - length, r.getSize() - offset - length))) > 0;) {
+							length += n;
+						}
+						if (length == 0) {
+							break;
+						}
+						sample.write(buffer, 0, length);
+
+						offset += length;
+						next += stride;
+					}
+				}
+			}
+
+			position += r.getSize();
+		}
+
+		return sample.toByteArray();
+	}
+
+	public static class Setting {
+
+		final Compression compression;
+		final int level;
+
+		final double ratio;
+		final long time; // estimated nanoseconds for all files on a single thread
+
+		Setting(Compression compression, int level) {
+			this(compression, level, 1, 0);
+		}
+
+		Setting(Compression compression, int level, double ratio, long time) {
+			this.compression = compression;
+			this.level = level;
+			this.ratio = ratio;
+			this.time = time;
+		}
+
+		public Compression getCompression() {
+			return compression;
+		}
+
+		public int getLevel() {
+			return level;
+		}
+
+		public double getRatio() {
+			return ratio;
+		}
+
+		public long getTime() {
+			return time;
+		}
+
+		@Override
+		public String toString() {
+			if (level < 0) {
+				return compression.toString();
+			}
+			return compression == Compression.xz ? compression + " preset " + level : compression + " level " + level;
+		}
+
+	}
+
+}
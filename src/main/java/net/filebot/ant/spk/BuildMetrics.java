@@ -0,0 +1,138 @@
+package net.filebot.ant.spk;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Task;
+
+/**
+ * Collect the duration and byte count of each build phase (e.g. compression, hashing or signing) for the whole project, and emit each phase as JFR event if JFR is available.
+ */
+public class BuildMetrics {
+
+	public static final String REFERENCE = "net.filebot.ant.spk.BuildMetrics";
+
+	// JFR is not available on Java 8 before 8u262
+	private static final boolean JFR = isClassAvailable("jdk.jfr.Event");
+
+	private final Map<String, Stats> phases = new LinkedHashMap<String, Stats>();
+
+	public synchronized void record(String phase, long nanos, long bytes) {
+		Stats stats = phases.computeIfAbsent(phase, Stats::new);
+		stats.count++;
+		stats.nanos += nanos;
+		stats.bytes += bytes;
+	}
+
+	public synchronized List<Stats> getPhases() {
+		List<Stats> copy = new ArrayList<Stats>();
+		phases.values().forEach(s -> copy.add(s.copy()));
+		return copy;
+	}
+
+	public synchronized void clear() {
+		phases.clear();
+	}
+
+	public static BuildMetrics get(Project project) {
+		if (project == null) {
+			return new BuildMetrics(); // not recorded
+		}
+
+		synchronized (project) {
+			BuildMetrics metrics = project.getReference(REFERENCE);
+			if (metrics == null) {
+				metrics = new BuildMetrics();
+				project.addReference(REFERENCE, metrics);
+			}
+			return metrics;
+		}
+	}
+
+	/**
+	 * Start timing the given phase, e.g. try (Phase p = BuildMetrics.start(this, "spk.build", file)) { ... p.setBytes(file.length()); }
+	 */
+	public static Phase start(Task task, String phase, Object target) {
+		return new Phase(get(task.getProject()), phase, String.valueOf(target));
+	}
+
+	private static boolean isClassAvailable(String name) {
+		try {
+			Class.forName(name);
+			return true;
+		} catch (Throwable e) {
+			return false;
+		}
+	}
+
+	public static class Phase implements AutoCloseable {
+
+		private final BuildMetrics metrics;
+		private final String name;
+		private final long start = System.nanoTime();
+		private final Object event;
+
+		private long bytes = 0;
+
+		private Phase(BuildMetrics metrics, String name, String target) {
+			this.metrics = metrics;
+			this.name = name;
+			this.event = JFR ? PhaseEvent.begin(name, target) : null;
+		}
+
+		public void setBytes(long bytes) {
+			this.bytes = bytes;
+		}
+
+		@Override
+		public void close() {
+			metrics.record(name, System.nanoTime() - start, bytes);
+			if (event != null) {
+				PhaseEvent.commit(event, bytes);
+			}
+		}
+
+	}
+
+	public static class Stats {
+
+		private final String phase;
+
+		private long count;
+		private long nanos;
+		private long bytes;
+
+		private Stats(String phase) {
+			this.phase = phase;
+		}
+
+		private Stats copy() {
+			Stats stats = new Stats(phase);
+			stats.count = count;
+			stats.nanos = nanos;
+			stats.bytes = bytes;
+			return stats;
+		}
+
+		public String getPhase() {
+			return phase;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		public long getMillis() {
+			return nanos / 1000000;
+		}
+
+		public long getBytes() {
+			return bytes;
+		}
+
+	}
+
+}
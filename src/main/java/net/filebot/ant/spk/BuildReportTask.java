@@ -0,0 +1,76 @@
+package net.filebot.ant.spk;
+
+import static java.nio.charset.StandardCharsets.*;
+import static java.util.Collections.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.List;
+
+import javax.json.Json;
+import javax.json.stream.JsonGenerator;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Task;
+
+/**
+ * Report the duration and byte count of all build phases so far as JSON file and / or Ant properties (i.e. prefix + phase + .time, .bytes and .count).
+ */
+public class BuildReportTask extends Task {
+
+	File file;
+	String prefix;
+	boolean reset = false; // keep collecting after the report by default
+
+	public void setFile(File value) {
+		file = value;
+	}
+
+	public void setPrefix(String value) {
+		prefix = value;
+	}
+
+	public void setReset(boolean value) {
+		reset = value;
+	}
+
+	@Override
+	public void execute() throws BuildException {
+		BuildMetrics metrics = BuildMetrics.get(getProject());
+		List<BuildMetrics.Stats> phases = metrics.getPhases();
+
+		for (BuildMetrics.Stats s : phases) {
+			log(String.format("%-24s %,6d x %,10d ms %,16d bytes", s.getPhase(), s.getCount(), s.getMillis(), s.getBytes()));
+		}
+
+		if (file != null) {
+			log("Write build report: " + file);
+			try (OutputStream out = Files.newOutputStream(file.toPath()); JsonGenerator json = Json.createGeneratorFactory(singletonMap(JsonGenerator.PRETTY_PRINTING, true)).createGenerator(out, UTF_8)) {
+				json.writeStartObject();
+				json.writeStartArray("phases");
+				for (BuildMetrics.Stats s : phases) {
+					json.writeStartObject().write("phase", s.getPhase()).write("count", s.getCount()).write("time", s.getMillis()).write("bytes", s.getBytes()).writeEnd();
+				}
+				json.writeEnd();
+				json.writeEnd();
+			} catch (IOException e) {
+				throw new BuildException("Failed to write build report: " + e.getMessage(), e);
+			}
+		}
+
+		if (prefix != null) {
+			for (BuildMetrics.Stats s : phases) {
+				getProject().setNewProperty(prefix + s.getPhase() + ".count", String.valueOf(s.getCount()));
+				getProject().setNewProperty(prefix + s.getPhase() + ".time", String.valueOf(s.getMillis()));
+				getProject().setNewProperty(prefix + s.getPhase() + ".bytes", String.valueOf(s.getBytes()));
+			}
+		}
+
+		if (reset) {
+			metrics.clear();
+		}
+	}
+
+}
@@ -5,29 +5,24 @@ import static net.filebot.ant.spk.PackageTask.*;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
-import java.nio.file.StandardCopyOption;
 import java.security.SignatureException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.TreeMap;
-import java.util.UUID;
-
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.entity.ContentType;
-import org.apache.http.entity.mime.MultipartEntityBuilder;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClientBuilder;
+
+import org.apache.tools.ant.BuildEvent;
 import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.BuildListener;
 import org.apache.tools.ant.Task;
 import org.apache.tools.ant.taskdefs.Tar.TarFileSet;
 import org.apache.tools.ant.types.Resource;
 import org.bouncycastle.openpgp.PGPException;
 
+import net.filebot.ant.spk.pgp.OpenPGPKeyCache;
 import net.filebot.ant.spk.pgp.OpenPGPSignature;
 
 public class CodeSignTask extends Task {
@@ -54,6 +49,43 @@ public class CodeSignTask extends Task {
 		this.timestamp = timestamp;
 	}
 
+	String digest = "SHA1"; // DSM 6 and the Synology timestamp server are known to accept SHA1 signatures
+	String provider; // use JDK digest and signature providers by default
+
+	public void setDigest(String digest) {
+		this.digest = digest;
+	}
+
+	public void setProvider(String provider) {
+		this.provider = provider;
+	}
+
+	int connectTimeout = 10000; // 10 seconds
+	int readTimeout = 60000; // 1 minute
+	int retries = 3;
+	long backoff = 1000; // wait 1, 2, 4 seconds between retries
+	int concurrency = 4; // maximum number of concurrent requests
+
+	public void setConnectTimeout(int connectTimeout) {
+		this.connectTimeout = connectTimeout;
+	}
+
+	public void setReadTimeout(int readTimeout) {
+		this.readTimeout = readTimeout;
+	}
+
+	public void setRetries(int retries) {
+		this.retries = retries;
+	}
+
+	public void setBackoff(long backoff) {
+		this.backoff = backoff;
+	}
+
+	public void setConcurrency(int concurrency) {
+		this.concurrency = concurrency;
+	}
+
 	File token = new File(SYNO_SIGNATURE);
 	List<TarFileSet> cats = new ArrayList<TarFileSet>();
 
@@ -67,25 +99,60 @@ public class CodeSignTask extends Task {
 
 	@Override
 	public void execute() {
-		byte[] asciiArmoredSignatureFile;
-
-		// compute PGP signature
-		log("GPG: sign with key " + keyId);
-
 		try {
-			OpenPGPSignature signature = OpenPGPSignature.createSignatureGenerator(keyId, secring, password);
+			Files.write(token.toPath(), sign());
+		} catch (IOException e) {
+			throw new BuildException("Failed to write signature: " + e.getMessage());
+		}
+	}
 
-			// cat files in case-sensitive alphabetical tar entry path order
+	public byte[] sign() {
+		OpenPGPSignature signature = createSignature();
+
+		// cat files in case-sensitive alphabetical tar entry path order
+		try (BuildMetrics.Phase phase = BuildMetrics.start(this, "codesign.sign", token); OutputStream cat = signature.getOutputStream()) {
 			byte[] buffer = new byte[64 * 1024];
 			int length = 0;
+			long bytes = 0;
 			for (Resource r : getTarOrderCatResources()) {
 				try (InputStream in = r.getInputStream()) {
 					while ((length = in.read(buffer, 0, buffer.length)) != -1) {
-						signature.update(buffer, 0, length);
+						cat.write(buffer, 0, length);
+						bytes += length;
 					}
 				}
 			}
+			phase.setBytes(bytes);
+		} catch (IOException e) {
+			throw new BuildException("Failed to compute PGP signature: " + e);
+		}
+
+		return timestamp(signature);
+	}
+
+	public OpenPGPSignature createSignature() {
+		log(String.format("GPG: sign with key %s (%s%s)", keyId, digest, provider == null ? "" : ", " + provider));
+
+		// keep decrypted keys for the rest of the build
+		synchronized (OpenPGPKeyCache.class) {
+			if (getProject().getReference(KEY_CACHE) == null) {
+				getProject().addReference(KEY_CACHE, new KeyCacheListener());
+				getProject().addBuildListener(getProject().getReference(KEY_CACHE));
+			}
+		}
 
+		try {
+			return OpenPGPSignature.createSignatureGenerator(keyId, secring, password, OpenPGPSignature.getHashAlgorithm(digest), provider);
+		} catch (IOException | PGPException | IllegalArgumentException e) {
+			throw new BuildException("Failed to compute PGP signature: " + e);
+		}
+	}
+
+	public byte[] timestamp(OpenPGPSignature signature) {
+		byte[] asciiArmoredSignatureFile;
+
+		// compute PGP signature
+		try {
 			asciiArmoredSignatureFile = signature.generate();
 		} catch (IOException | SignatureException | PGPException e) {
 			throw new BuildException("Failed to compute PGP signature: " + e);
@@ -94,21 +161,25 @@ public class CodeSignTask extends Task {
 		// sign the signature
 		log("SYNO: Submit signature to " + timestamp);
 
-		try (CloseableHttpClient httpClient = HttpClientBuilder.create().build()) {
-			HttpPost httpPost = new HttpPost(timestamp);
-
-			// timestamp.synology.com requires the full Content-Disposition head to be sent, including the filename section, e.g. Content-Disposition: form-data; name="file"; filename="ALLCAT.dat.asc"
-			HttpEntity pastData = MultipartEntityBuilder.create().addBinaryBody("file", asciiArmoredSignatureFile, ContentType.DEFAULT_BINARY, UUID.randomUUID().toString()).build();
-			httpPost.setEntity(pastData);
-
-			HttpResponse response = httpClient.execute(httpPost);
-			Files.copy(response.getEntity().getContent(), token.toPath(), StandardCopyOption.REPLACE_EXISTING);
-			dumpSignature(Files.readAllBytes(token.toPath()));
+		try (BuildMetrics.Phase phase = BuildMetrics.start(this, "codesign.timestamp", timestamp)) {
+			byte[] token = getTimestampClient().timestamp(asciiArmoredSignatureFile, this::log);
+			phase.setBytes(token.length);
+			dumpSignature(token);
+			return token;
 		} catch (IOException e) {
 			throw new BuildException("Failed to retrieve signature: " + e.getMessage());
 		}
 	}
 
+	private TimestampClient timestampClient;
+
+	protected synchronized TimestampClient getTimestampClient() {
+		if (timestampClient == null) {
+			timestampClient = new TimestampClient(timestamp, connectTimeout, readTimeout, retries, backoff, concurrency);
+		}
+		return timestampClient;
+	}
+
 	protected void dumpSignature(byte[] bytes) {
 		log(StandardCharsets.UTF_8.decode(ByteBuffer.wrap(bytes)).toString());
 	}
@@ -144,4 +215,43 @@ public class CodeSignTask extends Task {
 
 		return vPath;
 	}
+
+	private static final String KEY_CACHE = "net.filebot.ant.spk.pgp.OpenPGPKeyCache";
+
+	/**
+	 * Evict decrypted keys from memory when the build is finished.
+	 */
+	private static class KeyCacheListener implements BuildListener {
+
+		@Override
+		public void buildFinished(BuildEvent event) {
+			OpenPGPKeyCache.clear();
+		}
+
+		@Override
+		public void buildStarted(BuildEvent event) {
+		}
+
+		@Override
+		public void targetStarted(BuildEvent event) {
+		}
+
+		@Override
+		public void targetFinished(BuildEvent event) {
+		}
+
+		@Override
+		public void taskStarted(BuildEvent event) {
+		}
+
+		@Override
+		public void taskFinished(BuildEvent event) {
+		}
+
+		@Override
+		public void messageLogged(BuildEvent event) {
+		}
+
+	}
+
 }
@@ -1,18 +1,83 @@
 package net.filebot.ant.spk;
 
-import org.apache.tools.ant.taskdefs.Tar.TarCompressionMethod;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.tools.ant.BuildException;
+
+import net.filebot.ant.spk.util.ParallelGzipOutputStream;
+import net.filebot.ant.spk.util.ParallelXZOutputStream;
 
 /**
  * In DSM 5.2 or older, package.tgz must be tgz format. In DSM 6.0 or newer, package.tgz can be tgz or xz format, but the file name must be package.tgz.
+ * <p>
+ * Multi-threaded compression yields a single gzip member or concatenated xz streams, both of which are decompressed by DSM just like the single-threaded output.
+ * <p>
+ * The auto mode selects gzip or xz and the compression level based on a sample of the package files (see {@link AutoCompression}).
  */
 public enum Compression {
 
-	none, gzip, xz;
+	none, gzip, xz, auto;
+
+	public static final int DEFAULT_LEVEL = -1; // same as Deflater.DEFAULT_COMPRESSION
+
+	public OutputStream compress(OutputStream out) throws IOException {
+		return compress(out, DEFAULT_LEVEL);
+	}
+
+	/**
+	 * Create compression stream with the given gzip level or xz preset (0-9) or the default level (-1).
+	 */
+	public OutputStream compress(OutputStream out, int level) throws IOException {
+		switch (this) {
+		case gzip:
+			return level < 0 ? new GZIPOutputStream(out, BUFFER_SIZE) : new GZIPOutputStream(out, BUFFER_SIZE) {
+				{
+					def.setLevel(level);
+				}
+			};
+		case xz:
+			return newXZOutputStream(out, level);
+		case auto:
+			throw new BuildException("auto compression must be resolved to gzip or xz first");
+		default:
+			return out;
+		}
+	}
+
+	public OutputStream compress(OutputStream out, int threads, int blockSize) throws IOException {
+		return compress(out, threads, blockSize, DEFAULT_LEVEL);
+	}
+
+	public OutputStream compress(OutputStream out, int threads, int blockSize, int level) throws IOException {
+		if (threads > 1) {
+			switch (this) {
+			case gzip:
+				return new ParallelGzipOutputStream(out, threads, blockSize > 0 ? blockSize : ParallelGzipOutputStream.DEFAULT_BLOCK_SIZE, level);
+			case xz:
+				return new ParallelXZOutputStream(out, threads, blockSize > 0 ? blockSize : ParallelXZOutputStream.DEFAULT_BLOCK_SIZE, level);
+			default:
+				break;
+			}
+		}
+		return compress(out, level);
+	}
+
+	public static final int BUFFER_SIZE = 64 * 1024;
 
-	public TarCompressionMethod getTarCompressionMethod() {
-		TarCompressionMethod compression = new TarCompressionMethod();
-		compression.setValue(name());
-		return compression;
+	private static OutputStream newXZOutputStream(OutputStream out, int preset) {
+		// XZ for Java is an optional dependency just like for the Ant tar task
+		try {
+			Class<?> options = Class.forName("org.tukaani.xz.FilterOptions");
+			Class<?> lzma2 = Class.forName("org.tukaani.xz.LZMA2Options");
+			Class<? extends OutputStream> xz = Class.forName("org.tukaani.xz.XZOutputStream").asSubclass(OutputStream.class);
+			return xz.getConstructor(OutputStream.class, options).newInstance(out, preset < 0 ? lzma2.getConstructor().newInstance() : lzma2.getConstructor(int.class).newInstance(preset));
+		} catch (ClassNotFoundException e) {
+			throw new BuildException("xz compression requires the XZ for Java library", e);
+		} catch (Exception e) {
+			throw new BuildException("Failed to create XZOutputStream", e);
+		}
 	}
 
 }
@@ -0,0 +1,125 @@
+package net.filebot.ant.spk;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.util.EntityUtils;
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Task;
+
+/**
+ * Send package source queries to a package source server with a fixed number of concurrent keep-alive connections, and report throughput and latency.
+ */
+public class LoadTestTask extends Task {
+
+	String url;
+	int requests = 10000;
+	int concurrency = 16;
+	boolean revalidate = false; // request full response by default
+
+	public void setUrl(String value) {
+		url = value;
+	}
+
+	public void setRequests(int value) {
+		requests = value;
+	}
+
+	public void setConcurrency(int value) {
+		concurrency = value;
+	}
+
+	public void setRevalidate(boolean value) {
+		revalidate = value;
+	}
+
+	@Override
+	public void execute() throws BuildException {
+		if (url == null) {
+			throw new BuildException("Required attributes: url");
+		}
+
+		long[] latency = new long[requests];
+		AtomicInteger next = new AtomicInteger();
+		AtomicInteger errors = new AtomicInteger();
+
+		log(String.format("Send %,d requests to %s (%d connections)", requests, url, concurrency));
+
+		ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+		try (CloseableHttpClient httpClient = HttpClientBuilder.create().setMaxConnTotal(concurrency).setMaxConnPerRoute(concurrency).build()) {
+			String etag = revalidate ? getETag(httpClient) : null;
+
+			long start = System.nanoTime();
+			List<Future<?>> futures = new ArrayList<Future<?>>();
+			for (int t = 0; t < concurrency; t++) {
+				futures.add(executor.submit(() -> {
+					for (int i = next.getAndIncrement(); i < requests; i = next.getAndIncrement()) {
+						HttpGet httpGet = new HttpGet(url);
+						if (etag != null) {
+							httpGet.setHeader(HttpHeaders.IF_NONE_MATCH, etag);
+						}
+
+						long t0 = System.nanoTime();
+						try (CloseableHttpResponse response = httpClient.execute(httpGet)) {
+							EntityUtils.consume(response.getEntity());
+							int status = response.getStatusLine().getStatusCode();
+							if (status != 200 && status != 304) {
+								errors.incrementAndGet();
+							}
+						} catch (Exception e) {
+							errors.incrementAndGet();
+						}
+						latency[i] = System.nanoTime() - t0;
+					}
+				}));
+			}
+
+			for (Future<?> future : futures) {
+				future.get();
+			}
+			long time = System.nanoTime() - start;
+
+			Arrays.sort(latency);
+			log(String.format("Completed %,d requests in %,d ms: %,.0f requests/s", requests, time / 1000000, requests / (time / 1e9)));
+			log(String.format("Latency: p50 %.2f ms, p90 %.2f ms, p99 %.2f ms, max %.2f ms", percentile(latency, 50), percentile(latency, 90), percentile(latency, 99), percentile(latency, 100)));
+		} catch (InterruptedException | ExecutionException | IOException e) {
+			throw new BuildException(e);
+		} finally {
+			executor.shutdownNow();
+		}
+
+		if (errors.get() > 0) {
+			throw new BuildException(String.format("%,d of %,d requests failed", errors.get(), requests));
+		}
+	}
+
+	private String getETag(CloseableHttpClient httpClient) throws IOException {
+		try (CloseableHttpResponse response = httpClient.execute(new HttpGet(url))) {
+			EntityUtils.consume(response.getEntity());
+			Header etag = response.getFirstHeader(HttpHeaders.ETAG);
+			return etag == null ? null : etag.getValue();
+		}
+	}
+
+	private static double percentile(long[] sorted, int p) {
+		if (sorted.length == 0) {
+			return 0;
+		}
+		int i = (int) Math.ceil(p / 100d * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(i, sorted.length - 1))] / 1e6;
+	}
+
+}
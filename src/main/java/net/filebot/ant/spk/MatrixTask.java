@@ -0,0 +1,133 @@
+package net.filebot.ant.spk;
+
+import static net.filebot.ant.spk.Info.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+
+import org.apache.tools.ant.BuildException;
+
+import net.filebot.ant.spk.TarWriter.Entry;
+
+/**
+ * Build the same package for multiple architectures. Shared package files are compressed only once, and all SPK files are built concurrently.
+ */
+public class MatrixTask extends PackageTask {
+
+	List<Arch> archs = new ArrayList<Arch>();
+
+	int workers = Runtime.getRuntime().availableProcessors();
+
+	public void setArchs(String value) {
+		for (String name : value.trim().split("[\\s,]+")) {
+			if (name.length() > 0) {
+				Arch arch = new Arch();
+				arch.setName(name);
+				archs.add(arch);
+			}
+		}
+	}
+
+	public void addConfiguredArch(Arch arch) {
+		archs.add(arch);
+	}
+
+	public void setWorkers(int value) {
+		workers = value;
+	}
+
+	@Override
+	public void setCacheDir(File value) {
+		throw new BuildException("Unsupported attribute: cachedir");
+	}
+
+	@Override
+	public void setCacheSize(long value) {
+		throw new BuildException("Unsupported attribute: cachesize");
+	}
+
+	@Override
+	public void setSegments(boolean value) {
+		throw new BuildException("Unsupported attribute: segments");
+	}
+
+	@Override
+	public void execute() throws BuildException {
+		if (destDir == null || !infoList.containsKey(NAME) || !infoList.containsKey(VERSION) || archs.isEmpty())
+			throw new BuildException("Required attributes: destdir, name, version, archs");
+
+		if (archs.stream().anyMatch(a -> !a.infoList.containsKey(ARCH)))
+			throw new BuildException("Required attributes: arch name");
+
+		if (packageFiles.isEmpty() || spkFiles.isEmpty())
+			throw new BuildException("Required elements: package, scripts");
+
+		long start = System.currentTimeMillis();
+		AutoCompression.Setting setting = selectCompression(archs.stream().map(a -> {
+			Map<String, String> info = new LinkedHashMap<String, String>(infoList);
+			info.putAll(a.infoList);
+			return info;
+		}).collect(Collectors.toList()));
+
+		// arch specific package files are appended to the shared tar segment
+		boolean append = archs.stream().anyMatch(a -> !a.packageFiles.isEmpty());
+		SortedMap<String, Entry> spkEntries = new TarWriter(this).getEntries(spkFiles);
+
+		// make sure destination folder exists
+		destDir.mkdirs();
+
+		File segment = null;
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(workers, archs.size())));
+		try {
+			segment = File.createTempFile(PACKAGE_TGZ, ".part", destDir);
+
+			log(String.format("Compressing %s: %s (%d threads)", PACKAGE_TGZ, setting, threads));
+			try (BuildMetrics.Phase phase = BuildMetrics.start(this, "spk.compressSegment", PACKAGE_TGZ)) {
+				try (OutputStream out = Files.newOutputStream(segment.toPath())) {
+					long length = compress(out, packageFiles, !append, setting);
+					log(String.format("Compressed %s: %,d -> %,d bytes (%.1f%%) in %,d ms", PACKAGE_TGZ, length, segment.length(), 100d * segment.length() / length, System.currentTimeMillis() - start));
+				}
+				phase.setBytes(segment.length());
+			}
+
+			File sharedSegment = segment;
+			List<Future<File>> builds = new ArrayList<Future<File>>();
+			for (Arch arch : archs) {
+				Map<String, String> info = new LinkedHashMap<String, String>(infoList);
+				info.putAll(arch.infoList);
+
+				builds.add(executor.submit(() -> build(info, spkEntries, spk -> writePackage(spk, sharedSegment, append ? arch.packageFiles : null, setting))));
+			}
+
+			for (Future<File> build : builds) {
+				build.get();
+			}
+		} catch (IOException e) {
+			throw new BuildException("Failed to compress " + PACKAGE_TGZ + ": " + e.getMessage(), e);
+		} catch (ExecutionException e) {
+			throw e.getCause() instanceof BuildException ? (BuildException) e.getCause() : new BuildException(e.getCause());
+		} catch (InterruptedException e) {
+			throw new BuildException(e);
+		} finally {
+			executor.shutdownNow();
+			if (segment != null) {
+				segment.delete();
+			}
+		}
+
+		log(String.format("Built %d SPK files in %,d ms", archs.size(), System.currentTimeMillis() - start));
+	}
+
+}
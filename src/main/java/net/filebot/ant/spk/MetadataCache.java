@@ -0,0 +1,119 @@
+package net.filebot.ant.spk;
+
+import static java.nio.file.StandardCopyOption.*;
+import static java.util.Collections.*;
+import static net.filebot.ant.spk.RepositoryTask.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.json.Json;
+import javax.json.JsonException;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonReader;
+import javax.json.JsonValue;
+import javax.json.JsonWriter;
+import javax.json.stream.JsonGenerator;
+
+/**
+ * Persistent cache for SPK metadata (i.e. imported INFO fields and checksums). Entries are keyed by canonical path and only valid as long as file size, last-modified time and file key (i.e. inode, if available) are unchanged.
+ */
+public class MetadataCache {
+
+	public static final String LAST_MODIFIED = "lastModified";
+	public static final String FILE_KEY = "fileKey";
+	public static final String METADATA = "metadata";
+
+	private final File file;
+
+	private Map<String, JsonObject> entries;
+	private final Map<String, JsonObject> used = new ConcurrentHashMap<String, JsonObject>();
+
+	public MetadataCache(File file) {
+		this.file = file;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public Map<String, Object> get(File spk) throws IOException {
+		JsonObject entry = getEntries().get(spk.getCanonicalPath());
+		if (entry == null || !getStamp(spk).equals(getStamp(entry))) {
+			return null;
+		}
+
+		used.put(spk.getCanonicalPath(), entry);
+		return fromJson(entry.getJsonObject(METADATA));
+	}
+
+	public void put(File spk, Map<String, Object> metadata) throws IOException {
+		JsonObjectBuilder entry = Json.createObjectBuilder();
+		getStamp(spk).forEach(entry::add);
+		entry.add(METADATA, toJson(metadata));
+
+		used.put(spk.getCanonicalPath(), entry.build());
+	}
+
+	/**
+	 * Write all entries that have been used or added since the cache was loaded, so that entries for files that are gone are dropped.
+	 */
+	public void store() throws IOException {
+		JsonObjectBuilder json = Json.createObjectBuilder();
+		used.entrySet().stream().sorted(Map.Entry.comparingByKey()).forEach(e -> json.add(e.getKey(), e.getValue()));
+
+		// write to temporary file first so that the cache file is always complete
+		file.getAbsoluteFile().getParentFile().mkdirs();
+		File part = new File(file.getPath() + ".part");
+		try (OutputStream out = Files.newOutputStream(part.toPath()); JsonWriter writer = Json.createWriterFactory(singletonMap(JsonGenerator.PRETTY_PRINTING, true)).createWriter(out)) {
+			writer.writeObject(json.build());
+		}
+		Files.move(part.toPath(), file.toPath(), REPLACE_EXISTING, ATOMIC_MOVE);
+	}
+
+	private synchronized Map<String, JsonObject> getEntries() {
+		if (entries == null) {
+			entries = new ConcurrentHashMap<String, JsonObject>();
+			if (file.isFile()) {
+				try (InputStream in = Files.newInputStream(file.toPath()); JsonReader reader = Json.createReader(in)) {
+					reader.readObject().forEach((k, v) -> entries.put(k, (JsonObject) v));
+				} catch (IOException | JsonException | ClassCastException e) {
+					// ignore broken cache file
+					entries.clear();
+				}
+			}
+		}
+		return entries;
+	}
+
+	private static Map<String, JsonValue> getStamp(File spk) throws IOException {
+		BasicFileAttributes attributes = Files.readAttributes(spk.toPath(), BasicFileAttributes.class);
+
+		JsonObjectBuilder stamp = Json.createObjectBuilder();
+		stamp.add(SIZE, attributes.size());
+		stamp.add(LAST_MODIFIED, attributes.lastModifiedTime().toMillis());
+		if (attributes.fileKey() != null) {
+			stamp.add(FILE_KEY, Objects.toString(attributes.fileKey()));
+		}
+		return stamp.build();
+	}
+
+	private static Map<String, JsonValue> getStamp(JsonObject entry) {
+		JsonObjectBuilder stamp = Json.createObjectBuilder();
+		entry.forEach((k, v) -> {
+			if (!METADATA.equals(k)) {
+				stamp.add(k, v);
+			}
+		});
+		return stamp.build();
+	}
+
+}
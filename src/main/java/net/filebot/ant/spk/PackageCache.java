@@ -0,0 +1,106 @@
+package net.filebot.ant.spk;
+
+import static java.nio.charset.StandardCharsets.*;
+import static java.nio.file.StandardCopyOption.*;
+import static net.filebot.ant.spk.util.Digest.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Content-addressed on-disk cache for package.tgz files. Entries are keyed by the tar entry list (including content hashes) and the compression settings, and evicted in least-recently-used order once the cache exceeds the given size.
+ */
+public class PackageCache {
+
+	public static final String EXTENSION = ".tgz";
+	public static final String CHECKSUM_EXTENSION = ".md5";
+
+	private final File dir;
+	private final long maxSize;
+
+	public PackageCache(File dir, long maxSize) {
+		this.dir = dir;
+		this.maxSize = maxSize;
+	}
+
+	public String getKey(List<String> manifest) {
+		MessageDigest digest = getMessageDigest("SHA-256");
+		manifest.stream().sorted().forEach(line -> {
+			digest.update(line.getBytes(UTF_8));
+			digest.update((byte) '\n');
+		});
+		return hex(digest.digest());
+	}
+
+	public File get(String key) {
+		File file = new File(dir, key + EXTENSION);
+		File checksum = new File(dir, key + CHECKSUM_EXTENSION);
+
+		if (file.isFile() && checksum.isFile()) {
+			// mark as recently used
+			file.setLastModified(System.currentTimeMillis());
+			return file;
+		}
+		return null;
+	}
+
+	public String getChecksum(String key) throws IOException {
+		return new String(Files.readAllBytes(new File(dir, key + CHECKSUM_EXTENSION).toPath()), UTF_8).trim();
+	}
+
+	public Entry put(String key) throws IOException {
+		dir.mkdirs();
+		return new Entry(key);
+	}
+
+	public void evict() {
+		File[] files = dir.listFiles((d, name) -> name.endsWith(EXTENSION));
+		if (files == null) {
+			return;
+		}
+
+		// least recently used first
+		Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+
+		long size = Arrays.stream(files).mapToLong(File::length).sum();
+		for (int i = 0; i < files.length && size > maxSize; i++) {
+			String key = files[i].getName().substring(0, files[i].getName().length() - EXTENSION.length());
+			size -= files[i].length();
+			files[i].delete();
+			new File(dir, key + CHECKSUM_EXTENSION).delete();
+		}
+	}
+
+	public class Entry {
+
+		private final String key;
+		private final File part;
+
+		private Entry(String key) throws IOException {
+			this.key = key;
+			this.part = File.createTempFile(key, ".part", dir);
+		}
+
+		public OutputStream getOutputStream() throws IOException {
+			return Files.newOutputStream(part.toPath());
+		}
+
+		public void commit(String checksum) throws IOException {
+			Files.write(new File(dir, key + CHECKSUM_EXTENSION).toPath(), checksum.getBytes(UTF_8));
+			Files.move(part.toPath(), new File(dir, key + EXTENSION).toPath(), REPLACE_EXISTING, ATOMIC_MOVE);
+			evict();
+		}
+
+		public void discard() {
+			part.delete();
+		}
+
+	}
+
+}
@@ -0,0 +1,288 @@
+package net.filebot.ant.spk;
+
+import static java.nio.charset.StandardCharsets.*;
+import static net.filebot.ant.spk.RepositoryTask.*;
+import static net.filebot.ant.spk.util.Digest.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.stream.JsonGenerator;
+
+/**
+ * In-memory package source index that answers package center queries for a given arch, firmware build and language. Response bodies are rendered once per distinct package selection and kept as plain and gzip encoded bytes.
+ */
+public class PackageIndex {
+
+	public static final String NOARCH = "noarch";
+
+	private static final int MAX_QUERIES = 10000;
+	private static final int MAX_RESPONSES = 1000;
+
+	private final Set<String> keyrings;
+	private final List<Entry> entries = new ArrayList<Entry>();
+	private final Set<String> languages = new HashSet<String>();
+
+	private final Map<String, Response> queries = new ConcurrentHashMap<String, Response>();
+	private final Map<String, Response> responses = new ConcurrentHashMap<String, Response>();
+
+	public PackageIndex(Collection<String> keyrings) {
+		this.keyrings = new LinkedHashSet<String>(keyrings);
+	}
+
+	/**
+	 * Add package with the given SPK INFO fields (i.e. arch, firmware, os_min_ver and localized displayname and description) for filtering.
+	 */
+	public synchronized void add(JsonObject json, Map<String, String> info) {
+		Entry entry = new Entry(json);
+
+		String arch = info.get(Info.ARCH);
+		if (arch != null && !arch.isEmpty()) {
+			for (String a : arch.trim().split("\\s+")) {
+				if (NOARCH.equals(a)) {
+					entry.archs = null;
+					break;
+				}
+				entry.archs.add(a);
+			}
+		} else {
+			entry.archs = null;
+		}
+
+		entry.minBuild = Math.max(getBuild(info.get("firmware")), getBuild(info.get("os_min_ver")));
+		entry.minMajor = Math.max(getMajor(info.get("firmware")), getMajor(info.get("os_min_ver")));
+
+		info.forEach((k, v) -> {
+			Matcher m = LOCALIZED.matcher(k);
+			if (m.matches()) {
+				String field = m.group(1).equals("displayname") ? "dname" : "desc";
+				entry.localized.put(m.group(2) + ':' + field, v);
+				languages.add(m.group(2));
+			}
+		});
+
+		entries.add(entry);
+	}
+
+	/**
+	 * Add package without any filter information (e.g. packages from external package sources).
+	 */
+	public synchronized void add(JsonObject json) {
+		Entry entry = new Entry(json);
+		entry.archs = null;
+		entries.add(entry);
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Returns all architectures that are explicitly supported by any package.
+	 */
+	public SortedSet<String> getArchs() {
+		SortedSet<String> archs = new TreeSet<String>();
+		entries.stream().filter(e -> e.archs != null).forEach(e -> archs.addAll(e.archs));
+		return archs;
+	}
+
+	/**
+	 * Returns all minimum DSM major versions required by any package (0 if any firmware is supported).
+	 */
+	public SortedSet<Integer> getMajors() {
+		SortedSet<Integer> majors = new TreeSet<Integer>();
+		entries.forEach(e -> majors.add(e.minMajor));
+		return majors;
+	}
+
+	/**
+	 * Render all packages that can be installed on the given arch (only arch independent packages for noarch) and DSM major version.
+	 */
+	public byte[] getShard(String arch, int major) {
+		BitSet selection = new BitSet(entries.size());
+		for (int i = 0; i < entries.size(); i++) {
+			Entry e = entries.get(i);
+			if ((e.archs == null || e.archs.contains(arch)) && e.minMajor <= major) {
+				selection.set(i);
+			}
+		}
+		return write(selection, "");
+	}
+
+	public Response get(String arch, String build, String language) {
+		String query = arch + '/' + build + '/' + language;
+		Response response = queries.get(query);
+		if (response != null) {
+			return response;
+		}
+
+		// select packages for the given arch and firmware
+		long b = getBuild(build);
+		BitSet selection = new BitSet(entries.size());
+		for (int i = 0; i < entries.size(); i++) {
+			if (entries.get(i).accept(arch, b)) {
+				selection.set(i);
+			}
+		}
+
+		// render each distinct response only once
+		String lang = language != null && languages.contains(language) ? language : "";
+		if (responses.size() >= MAX_RESPONSES) {
+			responses.clear();
+		}
+		response = responses.computeIfAbsent(lang + selection, k -> render(selection, lang));
+
+		if (queries.size() >= MAX_QUERIES) {
+			queries.clear();
+		}
+		queries.put(query, response);
+		return response;
+	}
+
+	private Response render(BitSet selection, String language) {
+		byte[] body = write(selection, language);
+
+		ByteArrayOutputStream gzip = new ByteArrayOutputStream();
+		try (GZIPOutputStream out = new GZIPOutputStream(gzip)) {
+			out.write(body);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+
+		return new Response(body, gzip.toByteArray());
+	}
+
+	private byte[] write(BitSet selection, String language) {
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		try (JsonGenerator json = Json.createGenerator(body)) {
+			json.writeStartObject();
+			if (keyrings.size() > 0) {
+				json.writeStartArray(KEYRINGS);
+				keyrings.forEach(json::write);
+				json.writeEnd();
+			}
+
+			json.writeStartArray(PACKAGES);
+			selection.stream().mapToObj(entries::get).forEach(e -> json.write(e.localize(language)));
+			json.writeEnd();
+			json.writeEnd();
+		}
+		return body.toByteArray();
+	}
+
+	private static final Pattern BUILD = Pattern.compile("(?:\\d+[.])*\\d+-(\\d+)|(\\d+)");
+	private static final Pattern MAJOR = Pattern.compile("(\\d+)([.-].*)?");
+	private static final Pattern LOCALIZED = Pattern.compile("(displayname|description)_(\\w+)");
+
+	/**
+	 * Parse build number from firmware version (e.g. 6.0-7321) or plain build number (e.g. 7321).
+	 */
+	public static long getBuild(String version) {
+		if (version != null) {
+			Matcher m = BUILD.matcher(version.trim());
+			if (m.matches()) {
+				return Long.parseLong(m.group(1) != null ? m.group(1) : m.group(2));
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Parse major version from firmware version (e.g. 6 for 6.0-7321) or plain major version (e.g. 7), but not from plain build numbers (e.g. 7321).
+	 */
+	public static int getMajor(String version) {
+		if (version != null) {
+			Matcher m = MAJOR.matcher(version.trim());
+			if (m.matches() && (m.group(2) != null || m.group(1).length() <= 2)) {
+				return Integer.parseInt(m.group(1));
+			}
+		}
+		return 0;
+	}
+
+	private static class Entry {
+
+		final JsonObject json;
+
+		Set<String> archs = new HashSet<String>(); // null for any arch
+		long minBuild = 0;
+		int minMajor = 0;
+		Map<String, String> localized = new ConcurrentHashMap<String, String>();
+
+		Entry(JsonObject json) {
+			this.json = json;
+		}
+
+		boolean accept(String arch, long build) {
+			return (archs == null || arch == null || arch.isEmpty() || archs.contains(arch)) && (build == 0 || build >= minBuild);
+		}
+
+		JsonObject localize(String language) {
+			if (language.isEmpty() || localized.isEmpty()) {
+				return json;
+			}
+
+			JsonObjectBuilder builder = Json.createObjectBuilder();
+			json.forEach((k, v) -> {
+				String value = localized.get(language + ':' + k);
+				if (value != null) {
+					builder.add(k, value);
+				} else {
+					builder.add(k, v);
+				}
+			});
+			return builder.build();
+		}
+
+	}
+
+	public static class Response {
+
+		final byte[] body;
+		final byte[] gzip;
+		final String etag;
+
+		Response(byte[] body, byte[] gzip) {
+			this.body = body;
+			this.gzip = gzip;
+			this.etag = '"' + hex(getMessageDigest("SHA-256").digest(body)).substring(0, 32) + '"';
+		}
+
+		public byte[] getBody() {
+			return body;
+		}
+
+		public byte[] getGzip() {
+			return gzip;
+		}
+
+		public String getETag() {
+			return etag;
+		}
+
+		@Override
+		public String toString() {
+			return new String(body, UTF_8);
+		}
+
+	}
+
+}
@@ -1,28 +1,46 @@
 package net.filebot.ant.spk;
 
 import static java.nio.charset.StandardCharsets.*;
+import static java.nio.file.StandardCopyOption.*;
 import static net.filebot.ant.spk.Info.*;
 import static net.filebot.ant.spk.util.Digest.*;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.file.Files;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
 
 import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
 import org.apache.tools.ant.Task;
-import org.apache.tools.ant.taskdefs.Delete;
-import org.apache.tools.ant.taskdefs.Tar;
 import org.apache.tools.ant.taskdefs.Tar.TarFileSet;
-import org.apache.tools.ant.taskdefs.Tar.TarLongFileMode;
-import org.apache.tools.ant.types.FileSet;
+import org.apache.tools.ant.types.Resource;
+import org.apache.tools.ant.util.KeepAliveOutputStream;
+import org.apache.tools.ant.util.TeeOutputStream;
+import org.apache.tools.tar.TarBuffer;
+import org.apache.tools.tar.TarOutputStream;
+
+import net.filebot.ant.spk.TarWriter.Entry;
+import net.filebot.ant.spk.pgp.OpenPGPSignature;
+import net.filebot.ant.spk.util.CountingOutputStream;
+import net.filebot.ant.spk.util.TruncateOutputStream;
 
 public class PackageTask extends Task {
 
 	public static final String INFO = "INFO";
 	public static final String SYNO_SIGNATURE = "syno_signature.asc";
+	public static final String PACKAGE_TGZ = "package.tgz";
 
 	File destDir;
 
@@ -32,6 +50,16 @@ public class PackageTask extends Task {
 	List<TarFileSet> spkFiles = new ArrayList<TarFileSet>();
 
 	Compression compression = Compression.gzip; // use GZIP by default, XZ requires DSM 6 or higher
+	int threads = 1; // single-threaded compression by default
+	int blockSize = 0; // use default block size for the given compression
+	int level = Compression.DEFAULT_LEVEL; // gzip level or xz preset
+	double ratio = 0.5; // select the fastest setting that compresses package files to half their size in auto mode
+	boolean hardLinks = false; // store duplicate files as regular files by default
+	long modTime = -1; // not reproducible by default
+
+	File cacheDir; // no package cache by default
+	long cacheSize = 4L * 1024 * 1024 * 1024; // 4 GB
+	boolean segments = false; // cache the whole package.tgz by default
 
 	CodeSignTask codesign;
 
@@ -43,6 +71,48 @@ public class PackageTask extends Task {
 		compression = value;
 	}
 
+	public void setThreads(int value) {
+		threads = value;
+	}
+
+	public void setBlockSize(int value) {
+		blockSize = value;
+	}
+
+	public void setLevel(int value) {
+		if (value < 0 || value > 9)
+			throw new BuildException("Illegal compression level: " + value);
+
+		level = value;
+	}
+
+	public void setRatio(double value) {
+		ratio = value;
+	}
+
+	public void setHardLinks(boolean value) {
+		hardLinks = value;
+	}
+
+	/**
+	 * Build the same SPK file for the same input files. All entries are written in tar entry path order with the same modification time (SOURCE_DATE_EPOCH or 1970-01-01 if not set).
+	 */
+	public void setReproducible(boolean value) {
+		modTime = value ? getSourceDateEpoch() : -1;
+	}
+
+	public void setCacheDir(File value) {
+		cacheDir = value;
+	}
+
+	public void setCacheSize(long value) {
+		cacheSize = value;
+	}
+
+	public void setSegments(boolean value) {
+		segments = value;
+	}
+
 	public void setName(String value) {
 		infoList.put(NAME, value);
 	}
@@ -104,114 +174,293 @@ public class PackageTask extends Task {
 		if (packageFiles.isEmpty() || spkFiles.isEmpty())
 			throw new BuildException("Required elements: package, scripts");
 
-		String spkName = String.format("%s-%s-%s", infoList.get(NAME), infoList.get(VERSION), infoList.get(ARCH));
+		AutoCompression.Setting setting = selectCompression(Collections.singletonList(infoList));
+		build(infoList, new TarWriter(this).getEntries(spkFiles), spk -> preparePackage(spk, setting));
+	}
 
-		File spkStaging = new File(destDir, spkName);
-		File spkFile = new File(destDir, spkName + ".spk");
+	/**
+	 * Resolve auto compression to the gzip level or xz preset that meets the ratio target at the lowest cost for the package files at hand. XZ is only considered if all target DSM versions support it.
+	 */
+	protected AutoCompression.Setting selectCompression(Collection<Map<String, String>> infos) throws BuildException {
+		if (compression != Compression.auto) {
+			return new AutoCompression.Setting(compression, level);
+		}
+
+		// XZ requires DSM 6 or higher
+		boolean xz = infos.stream().allMatch(i -> Math.max(PackageIndex.getMajor(i.get("firmware")), PackageIndex.getMajor(i.get("os_min_ver"))) >= 6);
 
-		// make sure staging folder exists
-		spkStaging.mkdirs();
+		AutoCompression auto;
+		try (BuildMetrics.Phase phase = BuildMetrics.start(this, "spk.selectCompression", PACKAGE_TGZ)) {
+			List<Resource> resources = new TarWriter(this).getEntries(packageFiles).values().stream().map(Entry::getResource).collect(Collectors.toList());
+			auto = new AutoCompression(resources, xz, level);
+			phase.setBytes(auto.getSize());
+		} catch (IOException e) {
+			throw new BuildException("Failed to sample package files: " + e.getMessage(), e);
+		}
 
-		// generate info and package files and add to spk fileset
-		preparePackage(spkStaging);
-		prepareInfo(spkStaging);
-		prepareSignature(spkStaging);
+		auto.getSettings().forEach(s -> {
+			log(String.format("Compression %s: %.1f%% in %,d ms (estimated)", s, 100 * s.getRatio(), s.getTime() / 1000000), Project.MSG_VERBOSE);
+		});
 
-		// spk must be an uncompressed tar
-		tar(spkFile, Compression.none, spkFiles);
+		// estimated compression times vary from build to build
+		AutoCompression.Setting setting = auto.select(ratio, modTime < 0);
+		AutoCompression.Setting best = auto.best();
+		if (setting == null) {
+			throw new BuildException("No compression available");
+		}
 
-		// make sure staging folder is clean for next time
-		clean(spkStaging);
+		if (setting == best) {
+			log(String.format("Compression auto: %s (%.1f%% in %,d ms estimated)", setting, 100 * setting.getRatio(), setting.getTime() / 1000000));
+		} else {
+			log(String.format("Compression auto: %s (%.1f%% in %,d ms estimated, best ratio %s: %.1f%% in %,d ms estimated)", setting, 100 * setting.getRatio(), setting.getTime() / 1000000, best, 100 * best.getRatio(), best.getTime() / 1000000));
+		}
+		return setting;
 	}
 
-	private void prepareSignature(File tempDirectory) {
-		if (codesign != null) {
-			// select files that need to be signed
-			spkFiles.forEach((fs) -> {
-				fs.setProject(getProject());
-				codesign.addConfiguredCat(fs);
-			});
+	/**
+	 * Build a single SPK file. The task configuration is not modified, so the same task can be used to build multiple SPK files concurrently.
+	 */
+	protected File build(Map<String, String> info, SortedMap<String, Entry> spkEntries, PackageWriter packageWriter) throws BuildException {
+		Map<String, String> infoList = new LinkedHashMap<String, String>(info);
 
-			// create signature file
-			File signatureFile = new File(tempDirectory, SYNO_SIGNATURE);
-			codesign.setToken(signatureFile);
+		String spkName = String.format("%s-%s-%s", infoList.get(NAME), infoList.get(VERSION), infoList.get(ARCH));
+		File spkFile = new File(destDir, spkName + ".spk");
 
-			codesign.bindToOwner(this);
-			codesign.execute();
+		// make sure destination folder exists
+		destDir.mkdirs();
 
-			// add signature file to output package
-			TarFileSet syno_signature = new TarFileSet();
-			syno_signature.setFullpath(signatureFile.getName());
-			syno_signature.setFile(signatureFile);
-			spkFiles.add(syno_signature);
+		// write to a temporary file so that a failed build never leaves an incomplete spk file behind
+		log("Building SPK: " + spkFile);
+		File part = new File(destDir, spkName + ".spk.part");
+		try (BuildMetrics.Phase phase = BuildMetrics.start(this, "spk.build", spkFile)) {
+			try (SpkWriter spk = new SpkWriter(part, this)) {
+				spk.setReproducible(modTime);
+				build(spk, infoList, spkEntries, packageWriter);
+			}
+			Files.move(part.toPath(), spkFile.toPath(), REPLACE_EXISTING, ATOMIC_MOVE);
+			phase.setBytes(spkFile.length());
+		} catch (IOException e) {
+			throw new BuildException("Failed to write SPK: " + e.getMessage(), e);
+		} finally {
+			part.delete();
 		}
+		return spkFile;
 	}
 
-	private void preparePackage(File tempDirectory) {
-		File packageFile = new File(tempDirectory, "package.tgz");
-		tar(packageFile, compression, packageFiles);
+	private void build(SpkWriter spk, Map<String, String> infoList, SortedMap<String, Entry> spkEntries, PackageWriter packageWriter) throws IOException {
+		// generate package file and stream it straight into the spk
+		try (BuildMetrics.Phase phase = BuildMetrics.start(this, "spk.preparePackage", spk.getFile())) {
+			infoList.put("checksum", packageWriter.write(spk));
+			phase.setBytes(spk.getEntry(PACKAGE_TGZ).getSize());
+		}
 
-		infoList.put("checksum", md5(packageFile));
+		// all other entries are written in tar entry path order so that the signature can be computed on the fly
+		SortedMap<String, Entry> entries = new TreeMap<String, Entry>(spkEntries);
+		entries.put(PACKAGE_TGZ, new Entry(spk.getEntry(PACKAGE_TGZ), PACKAGE_TGZ, null));
+		entries.put(INFO, prepareInfo(infoList));
 
-		TarFileSet package_tgz = new TarFileSet();
-		package_tgz.setFullpath(packageFile.getName());
-		package_tgz.setFile(packageFile);
-		spkFiles.add(package_tgz);
+		prepareSignature(spk, entries.values());
 	}
 
-	private void prepareInfo(File tempDirectory) {
-		StringBuilder infoText = new StringBuilder();
-		infoList.forEach((k, v) -> {
-			infoText.append(k).append('=').append('"').append(v).append('"').append('\n');
-		});
+	private void prepareSignature(SpkWriter spk, Collection<Entry> entries) throws IOException {
+		if (codesign == null) {
+			tar(spk, entries, null);
+			return;
+		}
 
-		File infoFile = new File(tempDirectory, INFO);
-		log("Generating INFO: " + infoFile);
-		try {
-			Files.write(infoFile.toPath(), infoText.toString().getBytes(UTF_8));
-		} catch (Exception e) {
-			throw new BuildException("Failed to write INFO", e);
+		// update signature with the same bytes that are written to the spk
+		codesign.bindToOwner(this);
+		OpenPGPSignature signature = codesign.createSignature();
+		tar(spk, entries, signature.getOutputStream());
+
+		// signature data is hashed as part of spk.tar, so only the signature generation and the timestamp request are timed here
+		byte[] signatureFile;
+		try (BuildMetrics.Phase phase = BuildMetrics.start(this, "spk.prepareSignature", spk.getFile())) {
+			signatureFile = codesign.timestamp(signature);
+			phase.setBytes(signatureFile.length);
+		}
+
+		// add signature file to output package
+		spk.add(SYNO_SIGNATURE, signatureFile);
+	}
+
+	private void tar(SpkWriter spk, Collection<Entry> entries, OutputStream cat) throws IOException {
+		try (BuildMetrics.Phase phase = BuildMetrics.start(this, "spk.tar", spk.getFile())) {
+			spk.add(entries, cat);
+			phase.setBytes(entries.stream().mapToLong(e -> e.getResource().getSize()).sum());
 		}
+	}
+
+	private String preparePackage(SpkWriter spk, AutoCompression.Setting setting) throws IOException {
+		if (cacheDir == null) {
+			return compressPackage(spk, null, setting);
+		}
+
+		// package.tgz only depends on the tar entries and the compression settings
+		PackageCache cache = new PackageCache(cacheDir, cacheSize);
+		if (segments) {
+			return assemblePackage(spk, cache, setting);
+		}
+
+		List<String> manifest = new TarWriter(this).list(packageFiles);
+		manifest.add(String.format("compression=%s level=%d threads=%d blocksize=%d hardlinks=%s modtime=%d", setting.getCompression(), setting.getLevel(), threads, blockSize, hardLinks, modTime));
+		String key = cache.getKey(manifest);
 
-		TarFileSet info = new TarFileSet();
-		info.setFullpath(infoFile.getName());
-		info.setFile(infoFile);
-		spkFiles.add(info);
+		File cachedFile = cache.get(key);
+		if (cachedFile != null) {
+			log("Using cached " + PACKAGE_TGZ + ": " + cachedFile);
+			spk.add(PACKAGE_TGZ, cachedFile);
+			return cache.getChecksum(key);
+		}
+
+		PackageCache.Entry cacheEntry = cache.put(key);
+		try {
+			String checksum = compressPackage(spk, cacheEntry.getOutputStream(), setting);
+			cacheEntry.commit(checksum);
+			return checksum;
+		} finally {
+			cacheEntry.discard();
+		}
 	}
 
-	private void tar(File destFile, Compression compression, List<TarFileSet> files) {
-		Tar tar = new Tar();
-		tar.setProject(getProject());
-		tar.setLocation(getLocation());
-		tar.setTaskName(getTaskName());
-		tar.setEncoding("utf-8");
+	private String compressPackage(SpkWriter spk, OutputStream copy, AutoCompression.Setting setting) throws IOException {
+		log(String.format("Compressing %s: %s (%d threads)", PACKAGE_TGZ, setting, threads));
+		long start = System.currentTimeMillis();
+
+		OutputStream out = spk.newEntry(PACKAGE_TGZ);
+		if (copy != null) {
+			out = new TeeOutputStream(out, copy);
+		}
 
-		TarLongFileMode longFileMode = new TarLongFileMode();
-		longFileMode.setValue("posix");
-		tar.setLongfile(longFileMode);
+		// compute checksum while compressing
+		MessageDigest md5 = getMessageDigest("MD5");
+		long length = compress(new DigestOutputStream(out, md5), packageFiles, true, setting);
 
-		tar.setCompression(compression.getTarCompressionMethod());
+		long size = spk.getEntry(PACKAGE_TGZ).getSize();
+		log(String.format("Compressed %s: %,d -> %,d bytes (%.1f%%) in %,d ms", PACKAGE_TGZ, length, size, 100d * size / length, System.currentTimeMillis() - start));
 
-		tar.setDestFile(destFile);
-		for (FileSet fileset : files) {
-			if (fileset != null) {
-				// make sure the tarfileset element is initialized with all the project information it may need
-				fileset.setProject(tar.getProject());
-				fileset.setLocation(tar.getLocation());
-				tar.add(fileset);
+		return hex(md5.digest());
+	}
+
+	/**
+	 * Assemble package.tgz from one compressed tar segment per package file set, so that only the file sets that have changed since the last build are compressed again.
+	 */
+	private String assemblePackage(SpkWriter spk, PackageCache cache, AutoCompression.Setting setting) throws IOException {
+		log(String.format("Compressing %s: %s (%d threads, %d segments)", PACKAGE_TGZ, setting, threads, packageFiles.size()));
+		long start = System.currentTimeMillis();
+
+		TarWriter tar = new TarWriter(this);
+		MessageDigest md5 = getMessageDigest("MD5");
+		OutputStream out = new DigestOutputStream(spk.newEntry(PACKAGE_TGZ), md5);
+
+		int count = 0;
+		long length = 0;
+		for (TarFileSet fileset : packageFiles) {
+			List<TarFileSet> files = Collections.singletonList(fileset);
+			List<String> manifest = tar.list(files);
+			manifest.add(String.format("segment compression=%s level=%d threads=%d blocksize=%d hardlinks=%s modtime=%d", setting.getCompression(), setting.getLevel(), threads, blockSize, hardLinks, modTime));
+			String key = cache.getKey(manifest);
+
+			File cachedFile = cache.get(key);
+			if (cachedFile != null) {
+				log("Using cached segment: " + cachedFile, Project.MSG_VERBOSE);
+				Files.copy(cachedFile.toPath(), out);
+				continue;
+			}
+
+			// concatenated gzip members and xz streams decompress as a single tar archive as long as only the last segment has end-of-archive records
+			PackageCache.Entry cacheEntry = cache.put(key);
+			try {
+				MessageDigest segmentMd5 = getMessageDigest("MD5");
+				length += compress(new TeeOutputStream(new KeepAliveOutputStream(out), new DigestOutputStream(cacheEntry.getOutputStream(), segmentMd5)), files, false, setting);
+				cacheEntry.commit(hex(segmentMd5.digest()));
+				count++;
+			} finally {
+				cacheEntry.discard();
 			}
 		}
 
-		tar.perform();
+		// end-of-archive records
+		compress(out, Collections.emptyList(), true, setting);
+
+		long size = spk.getEntry(PACKAGE_TGZ).getSize();
+		log(String.format("Compressed %s: %d of %d segments (%,d bytes recompressed), %,d bytes total in %,d ms", PACKAGE_TGZ, count, packageFiles.size(), length, size, System.currentTimeMillis() - start));
+
+		return hex(md5.digest());
+	}
+
+	/**
+	 * Write package.tgz as a precompressed tar segment followed by the given tar file sets (if any).
+	 */
+	protected String writePackage(SpkWriter spk, File segment, List<TarFileSet> files, AutoCompression.Setting setting) throws IOException {
+		MessageDigest md5 = getMessageDigest("MD5");
+		OutputStream out = new DigestOutputStream(spk.newEntry(PACKAGE_TGZ), md5);
+		Files.copy(segment.toPath(), out);
+
+		if (files == null) {
+			out.close();
+		} else {
+			compress(out, files, true, setting);
+		}
+		return hex(md5.digest());
+	}
+
+	/**
+	 * Write compressed tar and return the number of uncompressed bytes. Without end-of-archive records, the output can be followed by more compressed tar data to form a single archive (i.e. multi-member gzip or concatenated xz streams).
+	 */
+	protected long compress(OutputStream out, List<TarFileSet> files, boolean endOfArchive) throws IOException {
+		return compress(out, files, endOfArchive, new AutoCompression.Setting(compression, level));
 	}
 
-	private void clean(File tempDirectory) {
-		Delete cleanupTask = new Delete();
-		cleanupTask.setProject(getProject());
-		cleanupTask.setTaskName(getTaskName());
-		cleanupTask.setLocation(getLocation());
-		cleanupTask.setDir(tempDirectory);
-		cleanupTask.perform();
+	protected long compress(OutputStream out, List<TarFileSet> files, boolean endOfArchive, AutoCompression.Setting setting) throws IOException {
+		TarWriter tar = new TarWriter(this);
+		tar.setHardLinks(hardLinks);
+		tar.setReproducible(modTime);
+		CountingOutputStream data = new CountingOutputStream(setting.getCompression().compress(out, threads, blockSize, setting.getLevel()));
+
+		// drop the two trailing zero records (one record per block)
+		try (TarOutputStream tarOut = endOfArchive ? tar.createOutputStream(data) : tar.createOutputStream(new TruncateOutputStream(data, 2 * TarBuffer.DEFAULT_RCDSIZE), TarBuffer.DEFAULT_RCDSIZE, null)) {
+			tar.write(tarOut, files);
+		}
+
+		if (tar.getLinkCount() > 0) {
+			log(String.format("Linked %d duplicate files: %,d bytes saved", tar.getLinkCount(), tar.getLinkBytes()));
+		}
+		return data.getCount();
+	}
+
+	private Entry prepareInfo(Map<String, String> infoList) {
+		StringBuilder infoText = new StringBuilder();
+		infoList.forEach((k, v) -> {
+			infoText.append(k).append('=').append('"').append(v).append('"').append('\n');
+		});
+
+		log("Generating " + INFO);
+		try (BuildMetrics.Phase phase = BuildMetrics.start(this, "spk.prepareInfo", INFO)) {
+			byte[] bytes = infoText.toString().getBytes(UTF_8);
+			phase.setBytes(bytes.length);
+			return new Entry(INFO, bytes);
+		}
+	}
+
+	private static long getSourceDateEpoch() {
+		String epoch = System.getenv("SOURCE_DATE_EPOCH");
+		if (epoch == null || epoch.isEmpty()) {
+			return 0;
+		}
+
+		try {
+			return Long.parseLong(epoch.trim()) * 1000;
+		} catch (NumberFormatException e) {
+			throw new BuildException("Illegal SOURCE_DATE_EPOCH: " + epoch);
+		}
+	}
+
+	@FunctionalInterface
+	protected interface PackageWriter {
+
+		String write(SpkWriter spk) throws IOException;
+
 	}
 
 }
@@ -0,0 +1,42 @@
+package net.filebot.ant.spk;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * JFR event for build phases. Only ever loaded if JFR is available, so all methods take and return plain objects.
+ */
+@Name("net.filebot.ant.spk.Phase")
+@Label("SPK Build Phase")
+@Category("ant-spk")
+@Description("Duration and byte count of a build phase, e.g. compression, hashing or signing")
+class PhaseEvent extends jdk.jfr.Event {
+
+	@Label("Phase")
+	String phase;
+
+	@Label("Target")
+	String target;
+
+	@Label("Bytes")
+	@DataAmount
+	long bytes;
+
+	static Object begin(String phase, String target) {
+		PhaseEvent event = new PhaseEvent();
+		event.phase = phase;
+		event.target = target;
+		event.begin();
+		return event;
+	}
+
+	static void commit(Object event, long bytes) {
+		PhaseEvent e = (PhaseEvent) event;
+		e.bytes = bytes;
+		e.commit();
+	}
+
+}
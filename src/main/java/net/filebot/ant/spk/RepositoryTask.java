@@ -1,24 +1,42 @@
 package net.filebot.ant.spk;
 
 import static java.nio.charset.StandardCharsets.*;
+import static java.nio.file.StandardCopyOption.*;
+import static java.util.Arrays.*;
 import static java.util.Collections.*;
 import static net.filebot.ant.spk.PackageTask.*;
 import static net.filebot.ant.spk.util.Digest.*;
 
 import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.StringWriter;
+import java.net.URL;
 import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 import java.util.regex.Pattern;
 
 import javax.json.Json;
+import javax.json.JsonArray;
 import javax.json.JsonArrayBuilder;
+import javax.json.JsonNumber;
 import javax.json.JsonObject;
 import javax.json.JsonObjectBuilder;
 import javax.json.JsonReader;
@@ -26,6 +44,9 @@ import javax.json.JsonString;
 import javax.json.JsonValue;
 import javax.json.JsonWriter;
 import javax.json.stream.JsonGenerator;
+import javax.json.stream.JsonParser;
+import javax.json.stream.JsonParser.Event;
+import javax.json.stream.JsonParsingException;
 
 import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.Project;
@@ -34,11 +55,12 @@ import org.apache.tools.ant.taskdefs.Get;
 import org.apache.tools.ant.types.FileSet;
 import org.apache.tools.ant.types.Resource;
 import org.apache.tools.ant.types.ResourceCollection;
-import org.apache.tools.ant.types.TarFileSet;
 import org.apache.tools.ant.types.resources.URLResource;
 import org.apache.tools.ant.types.resources.Union;
 import org.apache.tools.ant.util.FileUtils;
 
+import net.filebot.ant.spk.util.HttpDownloader;
+
 public class RepositoryTask extends Task {
 
 	File index;
@@ -47,10 +69,43 @@ public class RepositoryTask extends Task {
 	List<SPK> spks = new ArrayList<SPK>();
 	List<URLResource> sources = new ArrayList<URLResource>();
 
+	int threads = 1; // download and process one spk file at a time by default
+
+	MetadataCache metadataCache; // no metadata cache by default
+	File sourceCache; // no source cache by default
+	File shardDir; // no sharded index by default
+	boolean incremental = false; // regenerate the whole index by default
+
+	MetadataCache indexState;
+	Map<String, JsonObject> previousPackages;
+
+	// SPK INFO fields that have already been read in this run (only while the package index is collected in memory)
+	Map<File, Map<String, String>> spkInfo;
+
 	public void setFile(File file) {
 		this.index = file;
 	}
 
+	public void setThreads(int value) {
+		this.threads = value;
+	}
+
+	public void setCache(File file) {
+		this.metadataCache = new MetadataCache(file);
+	}
+
+	public void setIncremental(boolean value) {
+		this.incremental = value;
+	}
+
+	public void setShardDir(File dir) {
+		this.shardDir = dir;
+	}
+
+	public void setSourceCache(File dir) {
+		this.sourceCache = dir;
+	}
+
 	public void addConfiguredKeyRing(FileSet key) {
 		keyrings.add(key);
 	}
@@ -76,81 +131,438 @@ public class RepositoryTask extends Task {
 
 	@Override
 	public void execute() throws BuildException {
-		if (index == null) {
-			throw new BuildException("Required attributes: file");
+		if (index == null && shardDir == null) {
+			throw new BuildException("Required attributes: file or sharddir");
 		}
 
-		try {
-			// generate package source for spk files
-			JsonArrayBuilder jsonPackages = Json.createArrayBuilder();
-			getPackages().forEach((p) -> {
-				JsonObjectBuilder jsonPackage = Json.createObjectBuilder();
-				p.forEach((k, v) -> {
-					if (v instanceof Boolean) {
-						jsonPackage.add(k, (Boolean) v); // Boolean
-					} else if (v instanceof Number) {
-						jsonPackage.add(k, ((Number) v).longValue()); // Integer
-					} else if (v instanceof String[]) {
-						JsonArrayBuilder array = Json.createArrayBuilder(); // String Array
-						for (String s : (String[]) v) {
-							array.add(s);
+		// collect packages only once if both index and shards are generated
+		PackageIndex packageIndex = index != null ? writeIndex(shardDir != null) : getPackageIndex();
+
+		if (shardDir != null) {
+			writeShards(packageIndex);
+		}
+	}
+
+	/**
+	 * Write the package source file, and collect the packages in memory as well if requested.
+	 */
+	private PackageIndex writeIndex(boolean collect) throws BuildException {
+		File sourceDir = null;
+		try (BuildMetrics.Phase phase = BuildMetrics.start(this, "source.index", index)) {
+			// diff spk files against the existing index
+			if (incremental) {
+				loadIndex();
+			}
+
+			// fetch external package sources to local files, so that keyrings and packages can be read in separate passes
+			sourceDir = getSourceDir();
+			List<File> sourceFiles = getSources(sourceDir);
+			Set<String> keyrings = getKeyRings(sourceFiles);
+			PackageIndex packageIndex = collect ? new PackageIndex(keyrings) : null;
+
+			// write packages one by one as they are generated, so that the whole index is never held in memory
+			log("Write Package Source: " + index);
+			File part = new File(index.getPath() + ".part");
+			try (OutputStream out = Files.newOutputStream(part.toPath())) {
+				writeIndex(out, keyrings, json -> {
+					// generate package source for spk files
+					collectPackages(collect, (spk, p) -> {
+						JsonObject object = toJson(p).build();
+						json.accept(object);
+						if (packageIndex != null) {
+							packageIndex.add(object, getSpkInfo(spk.file));
 						}
-						jsonPackage.add(k, array);
-					} else if (v == null) {
-						jsonPackage.addNull(k); // null
-					} else {
-						jsonPackage.add(k, v.toString()); // String
+					});
+
+					// include packages from external package sources
+					for (File sourceFile : sourceFiles) {
+						readSource(sourceFile, null, p -> {
+							log("Import package: " + p.getString(PACKAGE));
+							json.accept(p);
+							if (packageIndex != null) {
+								packageIndex.add(p);
+							}
+						});
 					}
 				});
-				jsonPackages.add(jsonPackage);
-			});
+			}
+			Files.move(part.toPath(), index.toPath(), REPLACE_EXISTING, ATOMIC_MOVE);
+			phase.setBytes(index.length());
 
-			// collect public keys and omit duplicates
-			Set<String> keyrings = new LinkedHashSet<String>();
-			keyrings.addAll(getKeyRings());
+			// store metadata of all included spk files for the next run
+			if (metadataCache != null) {
+				log("Write Metadata Cache: " + metadataCache.getFile());
+				metadataCache.store();
+			}
 
-			// include keyrings and packages from external package sources
-			for (URLResource source : sources) {
-				try (JsonReader reader = Json.createReader(source.getInputStream())) {
-					JsonObject json = reader.readObject();
+			// removed spk files are dropped from the index state as well
+			if (indexState != null) {
+				indexState.store();
+			}
+			return packageIndex;
+		} catch (Exception e) {
+			throw new BuildException(e);
+		} finally {
+			deleteSourceDir(sourceDir);
+		}
+	}
 
-					if (json.getJsonArray(KEYRINGS) != null) {
-						for (JsonValue k : json.getJsonArray(KEYRINGS)) {
-							log("Import keyring: " + source);
-							keyrings.add(normalizeKey(((JsonString) k).getString()));
-						}
-					}
+	/**
+	 * Write the given keyrings and all packages passed on by the given package source as package source JSON.
+	 */
+	void writeIndex(OutputStream out, Collection<String> keyrings, PackageSource packages) throws Exception {
+		try (JsonGenerator json = Json.createGeneratorFactory(singletonMap(JsonGenerator.PRETTY_PRINTING, true)).createGenerator(new FilterOutputStream(out) {
 
-					if (json.getJsonArray(PACKAGES) != null) {
-						for (JsonValue p : json.getJsonArray(PACKAGES)) {
-							log("Import package: " + (((JsonString) ((JsonObject) p).get(PACKAGE))).getString());
-							jsonPackages.add(p);
-						}
-					}
-				} catch (Exception e) {
-					throw new BuildException(e);
+			private boolean start = true;
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				// skip leading line break of pretty printed output
+				while (start && len > 0 && b[off] == '\n') {
+					off++;
+					len--;
 				}
+				start &= len == 0;
+				out.write(b, off, len);
 			}
-
-			JsonObjectBuilder jsonRoot = Json.createObjectBuilder();
+		}, UTF_8)) {
+			json.writeStartObject();
 			if (keyrings.size() > 0) {
-				JsonArrayBuilder jsonKeyrings = Json.createArrayBuilder();
-				keyrings.forEach(jsonKeyrings::add);
-				jsonRoot.add(KEYRINGS, jsonKeyrings);
+				json.writeStartArray(KEYRINGS);
+				keyrings.forEach(json::write);
+				json.writeEnd();
+			}
+
+			json.writeStartArray(PACKAGES);
+			packages.write(json::write);
+			json.writeEnd();
+			json.writeEnd();
+		}
+	}
+
+	public static final String MANIFEST = "manifest.json";
+	public static final String SHARDS = "shards";
+
+	/**
+	 * Write one compact index per arch and minimum DSM major version, and a manifest of all shards. Shards are written concurrently, and only if their content has changed.
+	 */
+	private void writeShards(PackageIndex packageIndex) throws BuildException {
+		shardDir.mkdirs();
+
+		// packages for unknown archs are in the noarch shards
+		List<String> archs = new ArrayList<String>(packageIndex.getArchs());
+		archs.add(PackageIndex.NOARCH);
+
+		ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+		try {
+			List<Future<JsonObject>> futures = new ArrayList<Future<JsonObject>>();
+			for (String arch : archs) {
+				for (int major : packageIndex.getMajors()) {
+					futures.add(executor.submit(() -> writeShard(packageIndex, arch, major)));
+				}
+			}
+
+			JsonArrayBuilder shards = Json.createArrayBuilder();
+			Set<String> files = new HashSet<String>();
+			for (Future<JsonObject> future : futures) {
+				JsonObject shard = future.get();
+				shards.add(shard);
+				files.add(shard.getString("file"));
+			}
+
+			// remove shards of the previous manifest that are gone
+			File manifest = new File(shardDir, MANIFEST);
+			if (manifest.isFile()) {
+				try (JsonReader reader = Json.createReader(Files.newInputStream(manifest.toPath()))) {
+					for (JsonObject shard : reader.readObject().getJsonArray(SHARDS).getValuesAs(JsonObject.class)) {
+						if (!files.contains(shard.getString("file"))) {
+							log("Delete shard: " + shard.getString("file"));
+							new File(shardDir, shard.getString("file")).delete();
+						}
+					}
+				}
 			}
-			jsonRoot.add(PACKAGES, jsonPackages);
 
-			log("Write Package Source: " + index);
 			StringWriter json = new StringWriter();
 			try (JsonWriter writer = Json.createWriterFactory(singletonMap(JsonGenerator.PRETTY_PRINTING, true)).createWriter(json)) {
-				writer.writeObject(jsonRoot.build());
+				writer.writeObject(Json.createObjectBuilder().add(SHARDS, shards).build());
 			}
-			Files.write(index.toPath(), json.toString().trim().getBytes(UTF_8));
+			writeIfModified(manifest, json.toString().trim().getBytes(UTF_8));
+		} catch (ExecutionException e) {
+			throw new BuildException(e.getCause());
 		} catch (Exception e) {
 			throw new BuildException(e);
+		} finally {
+			executor.shutdownNow();
 		}
 	}
 
+	private JsonObject writeShard(PackageIndex packageIndex, String arch, int major) throws IOException {
+		String name = String.format("%s-%d.json", arch, major);
+		byte[] bytes = packageIndex.getShard(arch, major);
+		String sha256 = writeIfModified(new File(shardDir, name), bytes);
+
+		return Json.createObjectBuilder().add("arch", arch).add("major", major).add("file", name).add(SIZE, bytes.length).add(SHA256, sha256).build();
+	}
+
+	private String writeIfModified(File file, byte[] bytes) throws IOException {
+		String sha256 = hex(getMessageDigest("SHA-256").digest(bytes));
+		if (file.length() == bytes.length && sha256.equals(sha256(file))) {
+			return sha256;
+		}
+
+		log("Write " + file);
+		File part = new File(file.getPath() + ".part");
+		Files.write(part.toPath(), bytes);
+		Files.move(part.toPath(), file.toPath(), REPLACE_EXISTING, ATOMIC_MOVE);
+		return sha256;
+	}
+
+	/**
+	 * Collect all keyrings and packages in memory, including the SPK INFO fields needed for filtering by arch and firmware.
+	 */
+	public PackageIndex getPackageIndex() throws BuildException {
+		File sourceDir = null;
+		try {
+			sourceDir = getSourceDir();
+			List<File> sourceFiles = getSources(sourceDir);
+			PackageIndex packageIndex = new PackageIndex(getKeyRings(sourceFiles));
+
+			// keep SPK INFO fields for filtering
+			collectPackages(true, (spk, p) -> {
+				packageIndex.add(toJson(p).build(), getSpkInfo(spk.file));
+			});
+
+			for (File sourceFile : sourceFiles) {
+				readSource(sourceFile, null, packageIndex::add);
+			}
+
+			if (metadataCache != null) {
+				metadataCache.store();
+			}
+			return packageIndex;
+		} catch (BuildException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new BuildException(e);
+		} finally {
+			deleteSourceDir(sourceDir);
+		}
+	}
+
+	/**
+	 * Use source cache folder or temporary folder if source cache is disabled.
+	 */
+	protected File getSourceDir() throws IOException {
+		return sourceCache != null ? sourceCache : Files.createTempDirectory("sources").toFile();
+	}
+
+	protected void deleteSourceDir(File dir) {
+		if (dir != null && dir != sourceCache) {
+			for (File f : dir.listFiles()) {
+				f.delete();
+			}
+			dir.delete();
+		}
+	}
+
+	/**
+	 * Fetch all external package sources concurrently. Sources that have been fetched before are revalidated via ETag and Last-Modified and only downloaded again if they have been modified since.
+	 */
+	public List<File> getSources(File dir) throws Exception {
+		List<File> files = new ArrayList<File>();
+		if (sources.isEmpty()) {
+			return files;
+		}
+
+		dir.mkdirs();
+
+		ExecutorService executor = Executors.newFixedThreadPool(sources.size());
+		try (HttpDownloader downloader = new HttpDownloader(sources.size())) {
+			List<Future<File>> futures = new ArrayList<Future<File>>();
+			for (URLResource source : sources) {
+				futures.add(executor.submit(() -> {
+					URL url = source.getURL();
+					File file = new File(dir, hex(getMessageDigest("SHA-256").digest(url.toString().getBytes(UTF_8))) + ".json");
+
+					try (BuildMetrics.Phase phase = BuildMetrics.start(this, "source.download", url)) {
+						if (url.getProtocol().startsWith("http")) {
+							if (downloader.download(url, file, new File(dir, file.getName() + ".etag"))) {
+								log("Fetch source: " + url);
+								phase.setBytes(file.length());
+							} else {
+								log("Source not modified: " + url);
+							}
+						} else {
+							log("Fetch source: " + url);
+							try (InputStream in = source.getInputStream()) {
+								phase.setBytes(Files.copy(in, file.toPath(), REPLACE_EXISTING));
+							}
+						}
+					}
+					return file;
+				}));
+			}
+
+			for (Future<File> future : futures) {
+				try {
+					files.add(future.get());
+				} catch (ExecutionException e) {
+					throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+
+		return files;
+	}
+
+	/**
+	 * Stream keyrings and packages from the given package source file.
+	 */
+	public static void readSource(File file, Consumer<String> keyrings, Consumer<JsonObject> packages) throws IOException {
+		try (InputStream in = Files.newInputStream(file.toPath()); JsonParser parser = Json.createParser(in)) {
+			if (parser.next() != Event.START_OBJECT) {
+				throw new JsonParsingException("Expected package source object", parser.getLocation());
+			}
+
+			while (parser.next() == Event.KEY_NAME) {
+				String key = parser.getString();
+				Event value = parser.next();
+
+				if (value == Event.START_ARRAY && KEYRINGS.equals(key) && keyrings != null) {
+					while (parser.next() != Event.END_ARRAY) {
+						keyrings.accept(parser.getString());
+					}
+				} else if (value == Event.START_ARRAY && PACKAGES.equals(key) && packages != null) {
+					while (parser.next() != Event.END_ARRAY) {
+						packages.accept(parser.getObject());
+					}
+				} else if (value == Event.START_ARRAY) {
+					parser.skipArray();
+				} else if (value == Event.START_OBJECT) {
+					parser.skipObject();
+				}
+			}
+		}
+	}
+
+	public static JsonObjectBuilder toJson(Map<String, Object> map) {
+		JsonObjectBuilder json = Json.createObjectBuilder();
+		map.forEach((k, v) -> {
+			if (v instanceof Boolean) {
+				json.add(k, (Boolean) v); // Boolean
+			} else if (v instanceof Number) {
+				json.add(k, ((Number) v).longValue()); // Integer
+			} else if (v instanceof String[]) {
+				JsonArrayBuilder array = Json.createArrayBuilder(); // String Array
+				for (String s : (String[]) v) {
+					array.add(s);
+				}
+				json.add(k, array);
+			} else if (v == null) {
+				json.addNull(k); // null
+			} else {
+				json.add(k, v.toString()); // String
+			}
+		});
+		return json;
+	}
+
+	public static Map<String, Object> fromJson(JsonObject json) {
+		Map<String, Object> map = new LinkedHashMap<String, Object>();
+		json.forEach((k, v) -> {
+			switch (v.getValueType()) {
+			case TRUE:
+			case FALSE:
+				map.put(k, v.getValueType() == JsonValue.ValueType.TRUE); // Boolean
+				break;
+			case NUMBER:
+				map.put(k, ((JsonNumber) v).longValue()); // Integer
+				break;
+			case ARRAY:
+				map.put(k, ((JsonArray) v).getValuesAs(JsonString.class).stream().map(JsonString::getString).toArray(String[]::new)); // String Array
+				break;
+			case NULL:
+				map.put(k, null); // null
+				break;
+			default:
+				map.put(k, ((JsonString) v).getString()); // String
+				break;
+			}
+		});
+		return map;
+	}
+
+	public static final String CONFIG = "config";
+
+	/**
+	 * Load packages of the existing index, and the path, size, last-modified time and checksum of the spk file each package was generated from.
+	 */
+	private void loadIndex() throws IOException {
+		indexState = new MetadataCache(new File(index.getPath() + ".state"));
+		previousPackages = new ConcurrentHashMap<String, JsonObject>();
+
+		if (index.isFile()) {
+			readSource(index, null, p -> {
+				if (p.get(SHA256) instanceof JsonString) {
+					previousPackages.put(getPackageKey(p.getString(SHA256), p.get(LINK) instanceof JsonString ? p.getString(LINK) : null), p);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Returns the unchanged package from the existing index, or null if the spk file or its configuration has changed.
+	 */
+	private Map<String, Object> getPreviousPackage(SPK spk) throws IOException {
+		if (previousPackages == null) {
+			return null;
+		}
+
+		Map<String, Object> state = indexState.get(spk.file);
+		if (state != null && getConfig(spk).equals(state.get(CONFIG))) {
+			JsonObject json = previousPackages.get(getPackageKey(state.get(SHA256), state.get(LINK)));
+			if (json != null) {
+				return fromJson(json);
+			}
+		}
+		return null;
+	}
+
+	private String getPackageKey(Object sha256, Object link) {
+		// the same spk file may be listed more than once with different links
+		return sha256 + "\t" + link;
+	}
+
+	private String getConfig(SPK spk) {
+		// user-defined fields, thumbnails and snapshots
+		JsonObjectBuilder json = Json.createObjectBuilder();
+		json.add("url", String.valueOf(spk.url));
+		json.add("info", toJson(spk.infoList));
+		json.add(THUMBNAIL, toJson(singletonMap(THUMBNAIL, spk.thumbnail.toArray(new String[0]))));
+		json.add(SNAPSHOT, toJson(singletonMap(SNAPSHOT, spk.snapshot.toArray(new String[0]))));
+		return hex(getMessageDigest("SHA-256").digest(json.build().toString().getBytes(UTF_8)));
+	}
+
+	/**
+	 * Collect public keys from keyring resources and package source files and omit duplicates.
+	 */
+	public Set<String> getKeyRings(List<File> sourceFiles) throws Exception {
+		Set<String> keyrings = new LinkedHashSet<String>();
+		keyrings.addAll(getKeyRings());
+
+		for (int i = 0; i < sourceFiles.size(); i++) {
+			URLResource source = sources.get(i);
+			readSource(sourceFiles.get(i), k -> {
+				log("Import keyring: " + source);
+				keyrings.add(normalizeKey(k));
+			}, null);
+		}
+		return keyrings;
+	}
+
 	public List<String> getKeyRings() throws Exception {
 		List<String> keys = new ArrayList<String>();
 		for (Resource resource : keyrings) {
@@ -182,74 +594,216 @@ public class RepositoryTask extends Task {
 
 	public List<Map<String, Object>> getPackages() throws Exception {
 		List<Map<String, Object>> packages = new ArrayList<Map<String, Object>>();
+		getPackages(packages::add);
+		return packages;
+	}
+
+	/**
+	 * Pass packages to the given consumer one by one in the original order.
+	 */
+	public void getPackages(Consumer<Map<String, Object>> packages) throws Exception {
+		collectPackages(false, (spk, p) -> packages.accept(p));
+	}
 
-		for (SPK spk : spks) {
-			log("Include SPK: " + spk.file.getName());
+	private void collectPackages(boolean info, BiConsumer<SPK, Map<String, Object>> packages) throws Exception {
+		spkInfo = info ? new ConcurrentHashMap<File, Map<String, String>>() : null;
 
-			// make sure file is cached locally
-			if (spk.url != null) {
-				log("Using " + spk.url);
-				if (!spk.file.exists()) {
-					spk.file.getParentFile().mkdirs();
+		if (threads <= 1) {
+			for (SPK spk : spks) {
+				fetch(spk, null);
+				packages.accept(spk, getPackage(spk));
+			}
+			return;
+		}
+
+		// download, parse and hash multiple files concurrently, but keep the original order
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try (HttpDownloader downloader = new HttpDownloader(threads)) {
+			List<Future<Map<String, Object>>> futures = new ArrayList<Future<Map<String, Object>>>();
+			for (SPK spk : spks) {
+				futures.add(executor.submit(() -> {
+					fetch(spk, downloader);
+					return getPackage(spk);
+				}));
+			}
+
+			for (int i = 0; i < futures.size(); i++) {
+				try {
+					packages.accept(spks.get(i), futures.get(i).get());
+				} catch (ExecutionException e) {
+					throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
 				}
-				Get get = new Get();
-				get.bindToOwner(this);
-				get.setQuiet(true);
-				get.setUseTimestamp(true);
-				get.setSrc(spk.url);
-				get.setDest(spk.file);
-				get.execute();
-			} else {
-				log("Using " + spk.file);
 			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
 
-			// import SPK INFO
-			Map<String, Object> info = new LinkedHashMap<String, Object>();
-
-			TarFileSet tar = new TarFileSet();
-			tar.setProject(getProject());
-			tar.setSrc(spk.file);
-			tar.setIncludes(INFO);
-			for (Resource resource : tar) {
-				if (INFO.equals(resource.getName())) {
-					String text = FileUtils.readFully(new InputStreamReader(resource.getInputStream(), UTF_8));
-					for (String line : NEWLINE.split(text)) {
-						String[] s = line.split("=", 2);
-						if (s.length == 2) {
-							if (s[1].startsWith("\"") && s[1].endsWith("\"")) {
-								s[1] = s[1].substring(1, s[1].length() - 1);
-							}
-							importSpkInfo(info, s[0], s[1]);
-						}
-					}
+	private void fetch(SPK spk, HttpDownloader downloader) throws Exception {
+		log("Include SPK: " + spk.file.getName());
+
+		// make sure file is cached locally
+		if (spk.url == null) {
+			log("Using " + spk.file);
+			return;
+		}
+
+		log("Using " + spk.url);
+		try (BuildMetrics.Phase phase = BuildMetrics.start(this, "source.download", spk.url)) {
+			if (downloader != null && spk.url.getProtocol().startsWith("http")) {
+				if (downloader.download(spk.url, spk.file)) {
+					log("Downloaded " + spk.url);
+					phase.setBytes(spk.file.length());
 				}
+				return;
 			}
-			log(String.format("Imported %d fields from SPK: %s", info.size(), info.keySet()));
 
-			// add thumbnails and snapshots
-			if (spk.thumbnail.size() > 0) {
-				info.put(THUMBNAIL, spk.thumbnail.toArray(new String[0]));
+			if (!spk.file.exists()) {
+				spk.file.getParentFile().mkdirs();
 			}
-			if (spk.snapshot.size() > 0) {
-				info.put(SNAPSHOT, spk.snapshot.toArray(new String[0]));
+			Get get = new Get();
+			get.bindToOwner(this);
+			get.setQuiet(true);
+			get.setUseTimestamp(true);
+			get.setSrc(spk.url);
+			get.setDest(spk.file);
+			get.execute();
+		}
+	}
+
+	private Map<String, Object> getPackage(SPK spk) throws Exception {
+		// reuse packages of unmodified files from the existing index
+		Map<String, Object> previous = getPreviousPackage(spk);
+		if (previous != null) {
+			log("Unchanged SPK: " + spk.file.getName());
+
+			// keep cached metadata of unchanged files for the next full run
+			if (metadataCache != null) {
+				metadataCache.get(spk.file);
 			}
+			return previous;
+		}
 
-			// add user-defined fields
-			info.putAll(spk.infoList);
+		Map<String, Object> info = createPackage(spk);
+		if (indexState != null) {
+			Map<String, Object> state = new LinkedHashMap<String, Object>();
+			state.put(CONFIG, getConfig(spk));
+			state.put(SHA256, info.get(SHA256));
+			state.put(LINK, info.get(LINK) == null ? null : info.get(LINK).toString());
+			indexState.put(spk.file, state);
+		}
+		return info;
+	}
 
-			// automatically generate file size and checksum fields
-			if (!info.containsKey(LINK)) {
-				info.put(LINK, spk.url);
+	private Map<String, Object> createPackage(SPK spk) throws Exception {
+		// reuse INFO fields and checksums of unmodified files
+		Map<String, Object> metadata = metadataCache == null ? null : metadataCache.get(spk.file);
+		if (metadata == null) {
+			metadata = getMetadata(spk.file);
+			if (metadataCache != null) {
+				metadataCache.put(spk.file, metadata);
 			}
+		} else {
+			log("Using cached metadata: " + spk.file.getName());
+		}
 
-			info.put(MD5, md5(spk.file));
-			info.put(SHA256, sha256(spk.file));
-			info.put(SIZE, spk.file.length());
+		// import SPK INFO
+		Map<String, Object> info = new LinkedHashMap<String, Object>(metadata);
+		info.keySet().removeAll(asList(MD5, SHA256, SIZE));
 
-			packages.add(info);
+		// add thumbnails and snapshots
+		if (spk.thumbnail.size() > 0) {
+			info.put(THUMBNAIL, spk.thumbnail.toArray(new String[0]));
+		}
+		if (spk.snapshot.size() > 0) {
+			info.put(SNAPSHOT, spk.snapshot.toArray(new String[0]));
 		}
 
-		return packages;
+		// add user-defined fields
+		info.putAll(spk.infoList);
+
+		// automatically generate file size and checksum fields
+		if (!info.containsKey(LINK)) {
+			info.put(LINK, spk.url);
+		}
+
+		info.put(MD5, metadata.get(MD5));
+		info.put(SHA256, metadata.get(SHA256));
+		info.put(SIZE, metadata.get(SIZE));
+
+		return info;
+	}
+
+	/**
+	 * Import SPK INFO fields and compute file size and checksum fields.
+	 */
+	public Map<String, Object> getMetadata(File file) throws Exception {
+		Map<String, Object> info = new LinkedHashMap<String, Object>();
+
+		Map<String, String> fields = getInfo(file);
+		if (spkInfo != null) {
+			spkInfo.put(file, fields);
+		}
+		fields.forEach((k, v) -> importSpkInfo(info, k, v));
+		log(String.format("Imported %d fields from SPK: %s", info.size(), info.keySet()));
+
+		try (BuildMetrics.Phase phase = BuildMetrics.start(this, "source.digest", file)) {
+			Map<String, String> digest = digest(file, true, "MD5", "SHA-256");
+			info.put(MD5, digest.get("MD5"));
+			info.put(SHA256, digest.get("SHA-256"));
+			info.put(SIZE, file.length());
+			phase.setBytes(file.length());
+		}
+
+		return info;
+	}
+
+	/**
+	 * Returns the SPK INFO fields that have been read already in this run, or read them now if the package metadata has been cached.
+	 */
+	private Map<String, String> getSpkInfo(File file) {
+		Map<String, String> info = spkInfo == null ? null : spkInfo.remove(file);
+		if (info != null) {
+			return info;
+		}
+
+		try {
+			return getInfo(file);
+		} catch (IOException e) {
+			throw new BuildException(e);
+		}
+	}
+
+	/**
+	 * Read all SPK INFO fields as is.
+	 */
+	public Map<String, String> getInfo(File file) throws IOException {
+		try (BuildMetrics.Phase phase = BuildMetrics.start(this, "source.importInfo", file); SpkReader spk = new SpkReader(file)) {
+			byte[] bytes = spk.read(INFO);
+			phase.setBytes(bytes == null ? 0 : bytes.length);
+			return readInfo(bytes);
+		}
+	}
+
+	/**
+	 * Parse SPK INFO text (i.e. key="value" lines).
+	 */
+	public static Map<String, String> readInfo(byte[] bytes) {
+		Map<String, String> info = new LinkedHashMap<String, String>();
+
+		if (bytes != null) {
+			String text = new String(bytes, UTF_8);
+			for (String line : NEWLINE.split(text)) {
+				String[] s = line.split("=", 2);
+				if (s.length == 2) {
+					if (s[1].startsWith("\"") && s[1].endsWith("\"")) {
+						s[1] = s[1].substring(1, s[1].length() - 1);
+					}
+					info.put(s[0], s[1]);
+				}
+			}
+		}
+		return info;
 	}
 
 	public void importSpkInfo(Map<String, Object> info, String key, String value) {
@@ -299,4 +853,11 @@ public class RepositoryTask extends Task {
 
 	private static final Pattern URL_SEPARATOR = Pattern.compile("[, ]+");
 
+	@FunctionalInterface
+	interface PackageSource {
+
+		void write(Consumer<JsonObject> packages) throws Exception;
+
+	}
+
 }
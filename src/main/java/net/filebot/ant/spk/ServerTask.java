@@ -0,0 +1,213 @@
+package net.filebot.ant.spk;
+
+import static java.nio.charset.StandardCharsets.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.util.FileUtils;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serve package source queries over HTTP. The index is built once with the same data as the package-source task, and each response is filtered by the arch, build and language parameters of the request.
+ * <p>
+ * TCP_NODELAY is enabled via the sun.net.httpserver.nodelay system property, which the JDK HTTP server reads only once per JVM, i.e. it has no effect if an HTTP server (e.g. timestamp-server) has already been started in the same build. Set -Dsun.net.httpserver.nodelay=true in ANT_OPTS in that case.
+ */
+public class ServerTask extends RepositoryTask {
+
+	String host = "0.0.0.0";
+	int port = 8080;
+	int workers = Runtime.getRuntime().availableProcessors() * 2;
+	boolean daemon = false; // block until interrupted by default
+
+	public void setHost(String value) {
+		host = value;
+	}
+
+	public void setPort(int value) {
+		port = value;
+	}
+
+	public void setWorkers(int value) {
+		workers = value;
+	}
+
+	public void setDaemon(boolean value) {
+		daemon = value;
+	}
+
+	@Override
+	public void setFile(File file) {
+		throw new BuildException("Unsupported attribute: file");
+	}
+
+	@Override
+	public void setShardDir(File dir) {
+		throw new BuildException("Unsupported attribute: sharddir");
+	}
+
+	@Override
+	public void setIncremental(boolean value) {
+		throw new BuildException("Unsupported attribute: incremental");
+	}
+
+	@Override
+	public void execute() throws BuildException {
+		PackageIndex packageIndex = getPackageIndex();
+
+		// disable Nagle's algorithm so that small responses on keep-alive connections are not delayed (only if no HTTP server has been created yet)
+		if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+			System.setProperty("sun.net.httpserver.nodelay", "true");
+		}
+
+		HttpServer server;
+		ExecutorService executor = Executors.newFixedThreadPool(workers);
+		try {
+			server = HttpServer.create(new InetSocketAddress(host, port), 0);
+			server.createContext("/", exchange -> handle(exchange, packageIndex));
+			server.setExecutor(executor);
+			server.start();
+		} catch (IOException e) {
+			executor.shutdownNow();
+			throw new BuildException("Failed to start server: " + e.getMessage(), e);
+		}
+
+		log(String.format("Serving %d packages on http://%s:%d/", packageIndex.size(), host, server.getAddress().getPort()));
+		if (daemon) {
+			return;
+		}
+
+		try {
+			synchronized (this) {
+				wait();
+			}
+		} catch (InterruptedException e) {
+			log("Stop server");
+		} finally {
+			server.stop(0);
+			executor.shutdownNow();
+		}
+	}
+
+	private void handle(HttpExchange exchange, PackageIndex packageIndex) throws IOException {
+		try {
+			// DSM sends query parameters as POST form data
+			Map<String, String> parameters = new HashMap<String, String>();
+			parse(exchange.getRequestURI().getRawQuery(), parameters);
+
+			// always consume the request body, or else the connection will not be reused for responses without content
+			try (InputStream in = exchange.getRequestBody()) {
+				if ("POST".equals(exchange.getRequestMethod())) {
+					parse(FileUtils.readFully(new InputStreamReader(in, UTF_8)), parameters);
+				}
+			}
+
+			PackageIndex.Response response = packageIndex.get(parameters.get("arch"), parameters.get("build"), parameters.get("language"));
+
+			// gzip and identity representations are not byte-identical and therefore need distinct strong entity tags
+			boolean gzip = acceptGzip(exchange.getRequestHeaders().getFirst("Accept-Encoding"));
+			String etag = gzip ? response.getETag().replaceFirst("\"$", "-gzip\"") : response.getETag();
+
+			Headers headers = exchange.getResponseHeaders();
+			headers.set("Content-Type", "application/json; charset=utf-8");
+			headers.set("ETag", etag);
+			headers.set("Vary", "Accept-Encoding");
+
+			if (matches(exchange.getRequestHeaders().getFirst("If-None-Match"), etag)) {
+				exchange.sendResponseHeaders(304, -1);
+				return;
+			}
+
+			byte[] body = response.getBody();
+			if (gzip) {
+				headers.set("Content-Encoding", "gzip");
+				body = response.getGzip();
+			}
+
+			if ("HEAD".equals(exchange.getRequestMethod())) {
+				exchange.sendResponseHeaders(200, -1);
+				return;
+			}
+
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(body);
+			}
+		} finally {
+			exchange.close();
+		}
+	}
+
+	/**
+	 * Check if gzip is an acceptable content coding (e.g. gzip, gzip;q=0.5 or *) and not explicitly refused (e.g. gzip;q=0).
+	 */
+	private static boolean acceptGzip(String acceptEncoding) {
+		if (acceptEncoding == null) {
+			return false;
+		}
+
+		double gzip = -1;
+		double any = -1;
+		for (String coding : acceptEncoding.split(",")) {
+			String[] s = coding.trim().split("\\s*;\\s*");
+			double q = 1;
+			for (int i = 1; i < s.length; i++) {
+				if (s[i].startsWith("q=")) {
+					try {
+						q = Double.parseDouble(s[i].substring(2));
+					} catch (NumberFormatException e) {
+						q = 0;
+					}
+				}
+			}
+
+			if (s[0].equalsIgnoreCase("gzip") || s[0].equalsIgnoreCase("x-gzip")) {
+				gzip = q;
+			} else if (s[0].equals("*")) {
+				any = q;
+			}
+		}
+		return gzip >= 0 ? gzip > 0 : any > 0;
+	}
+
+	private static boolean matches(String ifNoneMatch, String etag) {
+		if (ifNoneMatch == null) {
+			return false;
+		}
+
+		for (String tag : ifNoneMatch.split(",")) {
+			tag = tag.trim();
+			if (tag.equals("*") || tag.equals(etag) || tag.equals("W/" + etag)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static void parse(String query, Map<String, String> parameters) throws IOException {
+		if (query == null) {
+			return;
+		}
+
+		for (String parameter : query.split("&")) {
+			String[] s = parameter.split("=", 2);
+			if (s.length == 2) {
+				parameters.put(URLDecoder.decode(s[0], "UTF-8"), URLDecoder.decode(s[1], "UTF-8"));
+			}
+		}
+	}
+
+}
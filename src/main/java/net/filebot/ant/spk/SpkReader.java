@@ -0,0 +1,207 @@
+package net.filebot.ant.spk;
+
+import static java.nio.charset.StandardCharsets.*;
+import static java.nio.file.StandardOpenOption.*;
+import static java.util.Arrays.*;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BooleanSupplier;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+import org.apache.tools.tar.TarBuffer;
+import org.apache.tools.tar.TarEntry;
+import org.apache.tools.zip.ZipEncoding;
+import org.apache.tools.zip.ZipEncodingHelper;
+
+/**
+ * Read selected entries from SPK files (i.e. uncompressed tar) by parsing tar headers and seeking past the content of all other entries (e.g. package.tgz).
+ */
+public class SpkReader implements Closeable {
+
+	public static final int RECORD_SIZE = TarBuffer.DEFAULT_RCDSIZE;
+
+	public static final Pattern PACKAGE_ICON = Pattern.compile("PACKAGE_ICON.*[.]PNG");
+
+	private final FileChannel channel;
+	private final ZipEncoding encoding = ZipEncodingHelper.getZipEncoding(TarWriter.ENCODING);
+
+	public SpkReader(File file) throws IOException {
+		this.channel = FileChannel.open(file.toPath(), READ);
+	}
+
+	/**
+	 * Match the whole entry name, unlike PACKAGE_ICON.asPredicate() which would also accept e.g. scripts/PACKAGE_ICON.PNG.bak.
+	 */
+	public static boolean isPackageIcon(String name) {
+		return PACKAGE_ICON.matcher(name).matches();
+	}
+
+	/**
+	 * Read the given entry, or null if there is no such entry.
+	 */
+	public byte[] read(String name) throws IOException {
+		return read(asList(name)).get(name);
+	}
+
+	/**
+	 * Read the given entries and stop as soon as all of them have been found.
+	 */
+	public Map<String, byte[]> read(Collection<String> names) throws IOException {
+		Set<String> remaining = new HashSet<String>(names);
+		return read(remaining::remove, remaining::isEmpty);
+	}
+
+	/**
+	 * Read all entries that match the given filter (e.g. SpkReader::isPackageIcon).
+	 */
+	public Map<String, byte[]> read(Predicate<String> filter) throws IOException {
+		return read(filter, () -> false);
+	}
+
+	private Map<String, byte[]> read(Predicate<String> filter, BooleanSupplier done) throws IOException {
+		Map<String, byte[]> entries = new LinkedHashMap<String, byte[]>();
+		scan((name, offset, size) -> {
+			if (filter.test(name)) {
+				entries.put(name, content(offset, size));
+			}
+		}, done);
+		return entries;
+	}
+
+	/**
+	 * List the content offset and size of all file entries in archive order without reading any content.
+	 */
+	public Map<String, long[]> list() throws IOException {
+		Map<String, long[]> entries = new LinkedHashMap<String, long[]>();
+		scan((name, offset, size) -> entries.put(name, new long[] { offset, size }), () -> false);
+		return entries;
+	}
+
+	/**
+	 * Read the content at the given offset (see {@link #list()}).
+	 */
+	public byte[] read(long offset, long size) throws IOException {
+		return content(offset, size);
+	}
+
+	/**
+	 * Copy the content at the given offset (see {@link #list()}) to the given stream.
+	 */
+	public void copy(long offset, long size, OutputStream out) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+		for (long position = offset, end = offset + size; position < end;) {
+			buffer.clear().limit((int) Math.min(buffer.capacity(), end - position));
+			int n = channel.read(buffer, position);
+			if (n < 0) {
+				throw new EOFException();
+			}
+			out.write(buffer.array(), 0, n);
+			position += n;
+		}
+	}
+
+	private void scan(EntryVisitor visitor, BooleanSupplier done) throws IOException {
+		long position = 0;
+		String longName = null;
+
+		while (!done.getAsBoolean()) {
+			ByteBuffer header = read(position, RECORD_SIZE);
+			if (header == null || isZero(header.array())) {
+				break; // end of archive
+			}
+
+			TarEntry entry = new TarEntry(header.array(), encoding);
+			long offset = position + RECORD_SIZE;
+			position = offset + (entry.getSize() + RECORD_SIZE - 1) / RECORD_SIZE * RECORD_SIZE;
+
+			// long file names are stored in the preceding pax or gnu header entry
+			if (entry.isPaxHeader()) {
+				longName = getPaxPath(content(offset, entry.getSize()));
+				continue;
+			}
+			if (entry.isGNULongNameEntry()) {
+				longName = trim(new String(content(offset, entry.getSize()), UTF_8));
+				continue;
+			}
+
+			String name = longName != null ? longName : entry.getName();
+			longName = null;
+
+			if (!entry.isDirectory()) {
+				visitor.accept(name, offset, entry.getSize());
+			}
+		}
+	}
+
+	@FunctionalInterface
+	private interface EntryVisitor {
+
+		void accept(String name, long offset, long size) throws IOException;
+
+	}
+
+	private byte[] content(long offset, long size) throws IOException {
+		if (size > Integer.MAX_VALUE) {
+			throw new IOException("Entry too large: " + size);
+		}
+
+		ByteBuffer buffer = read(offset, (int) size);
+		if (buffer == null) {
+			throw new EOFException();
+		}
+		return buffer.array();
+	}
+
+	private ByteBuffer read(long offset, int size) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(size);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, offset + buffer.position()) < 0) {
+				return null;
+			}
+		}
+		return buffer;
+	}
+
+	static boolean isZero(byte[] bytes) {
+		for (byte b : bytes) {
+			if (b != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	static String getPaxPath(byte[] bytes) {
+		// each record is "<length> <key>=<value>\n"
+		for (String record : new String(bytes, UTF_8).split("\n")) {
+			int space = record.indexOf(' ');
+			if (space > 0 && record.startsWith("path=", space + 1)) {
+				return record.substring(space + 6);
+			}
+		}
+		return null;
+	}
+
+	static String trim(String name) {
+		int end = name.indexOf('\0');
+		return end < 0 ? name : name.substring(0, end);
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+}
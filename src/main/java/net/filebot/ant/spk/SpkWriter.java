@@ -0,0 +1,348 @@
+package net.filebot.ant.spk;
+
+import static java.nio.file.StandardOpenOption.*;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.tools.ant.Task;
+import org.apache.tools.ant.types.Resource;
+import org.apache.tools.ant.types.resources.ArchiveResource;
+import org.apache.tools.ant.types.resources.FileProvider;
+import org.apache.tools.tar.TarBuffer;
+import org.apache.tools.tar.TarConstants;
+import org.apache.tools.tar.TarEntry;
+import org.apache.tools.tar.TarOutputStream;
+import org.apache.tools.zip.ZipEncodingHelper;
+
+import net.filebot.ant.spk.TarWriter.Entry;
+
+/**
+ * Write SPK files (i.e. uncompressed tar) in a single pass. Generated entries such as package.tgz are streamed straight into the archive and the tar header is patched in place once the entry size is known.
+ */
+public class SpkWriter implements Closeable {
+
+	public static final int RECORD_SIZE = TarBuffer.DEFAULT_RCDSIZE;
+	public static final int BLOCK_SIZE = TarBuffer.DEFAULT_BLKSIZE;
+
+	private final File file;
+	private final FileChannel channel;
+	private final TarWriter tar;
+
+	private final Map<String, Resource> entries = new HashMap<String, Resource>();
+
+	public SpkWriter(File file, Task owner) throws IOException {
+		this.file = file;
+		this.channel = FileChannel.open(file.toPath(), CREATE, TRUNCATE_EXISTING, WRITE);
+		this.tar = new TarWriter(owner);
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public void setReproducible(long modTime) {
+		tar.setReproducible(modTime);
+	}
+
+	/**
+	 * Write the given entries in order and copy the content of each entry to the given cat stream (e.g. for computing signatures). Entries that have already been written are not written again, but still copied to the cat stream.
+	 * <p>
+	 * Tar headers are generated by the tar task exactly as usual, but file content is transferred straight from file to file (i.e. sendfile or copy_file_range) unless it needs to be copied to the cat stream as well.
+	 */
+	public void add(Collection<Entry> entries, OutputStream cat) throws IOException {
+		for (Entry entry : entries) {
+			Resource resource = entry.getResource();
+
+			if (resource instanceof EntryResource) {
+				if (cat != null) {
+					try (InputStream in = resource.getInputStream()) {
+						copy(in, null, cat);
+					}
+				}
+				continue;
+			}
+
+			TarEntry tarEntry = getTarEntry(entry);
+			if (tarEntry == null) {
+				continue;
+			}
+
+			channel.write(ByteBuffer.wrap(getHeader(tarEntry)));
+
+			if (!tarEntry.isDirectory()) {
+				long size = 0;
+				FileProvider file = resource instanceof ArchiveResource ? null : resource.as(FileProvider.class);
+				if (file != null && cat == null) {
+					size = transfer(file.getFile(), channel);
+				} else {
+					try (InputStream in = resource.getInputStream()) {
+						size = copy(in, channel, cat);
+					}
+				}
+
+				if (size != tarEntry.getSize()) {
+					throw new IOException(String.format("Entry size mismatch: %s (%d != %d)", tarEntry.getName(), size, tarEntry.getSize()));
+				}
+				pad(size);
+			}
+		}
+	}
+
+	/**
+	 * Add the given file as is.
+	 */
+	public void add(String name, File file) throws IOException {
+		try (EntryOutputStream out = newEntry(name)) {
+			out.transfer(file);
+		}
+	}
+
+	public void add(String name, byte[] bytes) throws IOException {
+		try (OutputStream out = newEntry(name)) {
+			out.write(bytes);
+		}
+	}
+
+	public EntryOutputStream newEntry(String name) throws IOException {
+		if (name.length() >= TarConstants.NAMELEN) {
+			throw new IllegalArgumentException("Entry name too long: " + name);
+		}
+
+		// write header with unknown size and patch it later
+		TarEntry entry = new TarEntry(name);
+		tar.normalize(entry);
+		long header = channel.position();
+		channel.write(ByteBuffer.allocate(RECORD_SIZE));
+
+		return new EntryOutputStream(entry, header);
+	}
+
+	public Resource getEntry(String name) {
+		return entries.get(name);
+	}
+
+	/**
+	 * Let the tar task create the tar entry for the given file set entry, but without reading the file content.
+	 */
+	private TarEntry getTarEntry(Entry entry) throws IOException {
+		TarEntry[] tarEntry = new TarEntry[1];
+
+		try (TarOutputStream out = new TarOutputStream(new ByteArrayOutputStream(), TarWriter.ENCODING) {
+
+			@Override
+			public void putNextEntry(TarEntry entry) {
+				tarEntry[0] = entry;
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+				// discard
+			}
+
+			@Override
+			public void closeEntry() {
+				// ignore
+			}
+		}) {
+			// tar entry metadata depends on the resource type for tar and zip resources only
+			Resource resource = entry.getResource();
+			if (!(resource instanceof ArchiveResource)) {
+				resource = new Resource(resource.getName(), resource.isExists(), resource.getLastModified(), resource.isDirectory(), resource.getSize()) {
+
+					@Override
+					public InputStream getInputStream() {
+						return new ByteArrayInputStream(new byte[0]);
+					}
+				};
+			}
+			tar.write(out, new Entry(resource, entry.path, entry.fileset));
+		}
+
+		return tarEntry[0];
+	}
+
+	/**
+	 * Generate header records (including pax header records for long names) exactly as TarOutputStream does.
+	 */
+	private byte[] getHeader(TarEntry entry) throws IOException {
+		// header records are independent of the entry size except for the size field itself
+		long size = entry.getSize();
+		entry.setSize(0);
+
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		try (TarOutputStream out = tar.createOutputStream(buffer, RECORD_SIZE, null)) {
+			out.putNextEntry(entry);
+			out.closeEntry();
+		} finally {
+			entry.setSize(size);
+		}
+
+		// drop end-of-archive records and patch size field of the last header record
+		byte[] header = Arrays.copyOf(buffer.toByteArray(), buffer.size() - 2 * RECORD_SIZE);
+		byte[] record = new byte[RECORD_SIZE];
+		entry.writeEntryHeader(record, ZipEncodingHelper.getZipEncoding(TarWriter.ENCODING), false);
+		System.arraycopy(record, 0, header, header.length - RECORD_SIZE, RECORD_SIZE);
+		return header;
+	}
+
+	private long transfer(File file, FileChannel target) throws IOException {
+		try (FileChannel in = FileChannel.open(file.toPath(), READ)) {
+			long size = in.size();
+			for (long position = 0; position < size;) {
+				long n = in.transferTo(position, size - position, target);
+				if (n <= 0) {
+					throw new EOFException(file.getPath());
+				}
+				position += n;
+			}
+			return size;
+		}
+	}
+
+	private long copy(InputStream in, FileChannel target, OutputStream cat) throws IOException {
+		long size = 0;
+		byte[] buffer = new byte[Compression.BUFFER_SIZE];
+		for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+			if (target != null) {
+				ByteBuffer b = ByteBuffer.wrap(buffer, 0, n);
+				while (b.hasRemaining()) {
+					target.write(b);
+				}
+			}
+			if (cat != null) {
+				cat.write(buffer, 0, n);
+			}
+			size += n;
+		}
+		return size;
+	}
+
+	private void pad(long size) throws IOException {
+		// pad entry data to full record
+		channel.write(ByteBuffer.allocate((int) ((RECORD_SIZE - size % RECORD_SIZE) % RECORD_SIZE)));
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			// end of archive is marked by two records of zero bytes, and the archive is padded to full blocks just like Ant tar output
+			long size = channel.position() + 2 * RECORD_SIZE;
+			channel.write(ByteBuffer.allocate((int) (2 * RECORD_SIZE + (BLOCK_SIZE - size % BLOCK_SIZE) % BLOCK_SIZE)));
+			channel.truncate(channel.position());
+		} finally {
+			channel.close();
+		}
+	}
+
+	public class EntryOutputStream extends BufferedOutputStream {
+
+		private final TarEntry entry;
+		private final long header;
+
+		private long size = 0;
+		private boolean closed = false;
+
+		public EntryOutputStream(TarEntry entry, long header) {
+			super(Channels.newOutputStream(channel), Compression.BUFFER_SIZE);
+			this.entry = entry;
+			this.header = header;
+		}
+
+		@Override
+		public synchronized void write(int b) throws IOException {
+			super.write(b);
+			size++;
+		}
+
+		@Override
+		public synchronized void write(byte[] b, int off, int len) throws IOException {
+			super.write(b, off, len);
+			size += len;
+		}
+
+		/**
+		 * Append the content of the given file without copying it through user space.
+		 */
+		public synchronized void transfer(File file) throws IOException {
+			flush();
+			size += SpkWriter.this.transfer(file, channel);
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (closed) {
+				return;
+			}
+			closed = true;
+
+			flush();
+			pad(size);
+
+			// patch header
+			byte[] record = new byte[RECORD_SIZE];
+			entry.setSize(size);
+			entry.writeEntryHeader(record, ZipEncodingHelper.getZipEncoding(TarWriter.ENCODING), true);
+			channel.write(ByteBuffer.wrap(record), header);
+
+			entries.put(entry.getName(), new EntryResource(entry, header + RECORD_SIZE));
+		}
+	}
+
+	private class EntryResource extends Resource {
+
+		private final long offset;
+
+		public EntryResource(TarEntry entry, long offset) {
+			super(entry.getName(), true, entry.getModTime().getTime(), false, entry.getSize());
+			this.offset = offset;
+		}
+
+		@Override
+		public InputStream getInputStream() throws IOException {
+			FileChannel reader = FileChannel.open(file.toPath(), READ).position(offset);
+			return new InputStream() {
+
+				private long remaining = getSize();
+
+				@Override
+				public int read() throws IOException {
+					byte[] b = new byte[1];
+					return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+				}
+
+				@Override
+				public int read(byte[] b, int off, int len) throws IOException {
+					if (remaining <= 0) {
+						return -1;
+					}
+					int n = reader.read(ByteBuffer.wrap(b, off, (int) Math.min(len, remaining)));
+					if (n > 0) {
+						remaining -= n;
+					}
+					return n;
+				}
+
+				@Override
+				public void close() throws IOException {
+					reader.close();
+				}
+			};
+		}
+	}
+
+}
@@ -0,0 +1,364 @@
+package net.filebot.ant.spk;
+
+import static net.filebot.ant.spk.util.Digest.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Task;
+import org.apache.tools.ant.taskdefs.Tar;
+import org.apache.tools.ant.types.Resource;
+import org.apache.tools.ant.types.resources.ArchiveResource;
+import org.apache.tools.ant.types.resources.FileResource;
+import org.apache.tools.tar.TarBuffer;
+import org.apache.tools.tar.TarConstants;
+import org.apache.tools.tar.TarEntry;
+import org.apache.tools.tar.TarOutputStream;
+
+/**
+ * Reuse the Ant tar task for writing tar file sets into an arbitrary stream, so that tar entries are created exactly the same way as with the tar task.
+ */
+public class TarWriter extends Tar {
+
+	public static final String ENCODING = "utf-8";
+
+	public TarWriter(Task owner) {
+		bindToOwner(owner);
+		setEncoding(ENCODING);
+
+		TarLongFileMode longFileMode = new TarLongFileMode();
+		longFileMode.setValue("posix");
+		setLongfile(longFileMode);
+	}
+
+	private long modTime = -1; // keep file modification times by default
+
+	/**
+	 * Write the same tar for the same input files regardless of file system order, file modification times and local user name (i.e. reproducible builds). Entries are written in tar entry path order, with the given modification time, and without the local user name.
+	 */
+	public void setReproducible(long modTime) {
+		this.modTime = modTime;
+	}
+
+	public boolean isReproducible() {
+		return modTime >= 0;
+	}
+
+	public void normalize(TarEntry entry) {
+		if (modTime >= 0) {
+			entry.setModTime(modTime);
+
+			// new tar entries are owned by the local user unless the file set specifies otherwise
+			if (entry.getUserName().equals(LOCAL_USER_NAME)) {
+				entry.setUserName("");
+			}
+		}
+	}
+
+	private static final String LOCAL_USER_NAME = new TarEntry("").getUserName();
+
+	private Map<String, String> links; // don't link duplicate files by default
+	private int linkCount = 0;
+	private long linkBytes = 0;
+
+	/**
+	 * Write each file with the same content as a previously written file as hard link to the first occurrence.
+	 */
+	public void setHardLinks(boolean value) {
+		links = value ? new HashMap<String, String>() : null;
+	}
+
+	public int getLinkCount() {
+		return linkCount;
+	}
+
+	public long getLinkBytes() {
+		return linkBytes;
+	}
+
+	@Override
+	protected void tarResource(Resource r, TarOutputStream tOut, String vPath, TarFileSet tarFileSet) throws IOException {
+		if (links == null || !r.isExists() || r.isDirectory() || r.getSize() <= 0) {
+			super.tarResource(r, tOut, vPath, tarFileSet);
+			return;
+		}
+
+		String name = tarFileSet == null ? vPath : getEntryName(vPath, false, tarFileSet);
+		String link = links.putIfAbsent(getAttributes(r, tarFileSet) + hash(r), name);
+		if (link == null) {
+			super.tarResource(r, tOut, vPath, tarFileSet);
+			return;
+		}
+
+		log("Link " + name + " to " + link, Project.MSG_VERBOSE);
+		linkCount++;
+		linkBytes += r.getSize();
+
+		// archive resources may carry their own file mode, so only skip reading the content for plain resources
+		Resource header = r instanceof ArchiveResource ? r : new Resource(r.getName(), true, r.getLastModified(), false, 0) {
+
+			@Override
+			public InputStream getInputStream() {
+				return new ByteArrayInputStream(new byte[0]);
+			}
+		};
+		super.tarResource(header, new TarOutputStream(tOut, ENCODING) {
+
+			@Override
+			public void putNextEntry(TarEntry entry) throws IOException {
+				TarEntry te = new TarEntry(entry.getName(), TarConstants.LF_LINK);
+				te.setLinkName(link);
+				te.setModTime(entry.getModTime());
+				te.setMode(entry.getMode());
+				te.setUserName(entry.getUserName());
+				te.setUserId(entry.getLongUserId());
+				te.setGroupName(entry.getGroupName());
+				te.setGroupId(entry.getLongGroupId());
+				tOut.putNextEntry(te);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+				// hard links have no content
+			}
+
+			@Override
+			public void closeEntry() throws IOException {
+				tOut.closeEntry();
+			}
+		}, vPath, tarFileSet);
+	}
+
+	private String getAttributes(Resource r, TarFileSet fileset) {
+		// hard links share file mode and ownership with the link target
+		int mode = r instanceof ArchiveResource ? ((ArchiveResource) r).getMode() : 0;
+		if (fileset == null) {
+			return Integer.toOctalString(mode) + ":";
+		}
+		if (fileset.hasFileModeBeenSet()) {
+			mode = fileset.getMode();
+		}
+		return String.join(":", Integer.toOctalString(mode), fileset.getUserName(), fileset.getGroup(), String.valueOf(fileset.getUid()), String.valueOf(fileset.getGid()), "");
+	}
+
+	private String hash(Resource r) throws IOException {
+		MessageDigest digest = getMessageDigest("SHA-256");
+		byte[] buffer = new byte[64 * 1024];
+		try (InputStream in = r.getInputStream()) {
+			for (int n = 0; (n = in.read(buffer)) >= 0;) {
+				digest.update(buffer, 0, n);
+			}
+		}
+		return r.getSize() + ":" + hex(digest.digest());
+	}
+
+	public TarOutputStream createOutputStream(OutputStream out) {
+		return createOutputStream(out, TarBuffer.DEFAULT_BLKSIZE, null);
+	}
+
+	/**
+	 * Create tar stream that also copies the content of each file entry to the given cat stream (if any).
+	 */
+	public TarOutputStream createOutputStream(OutputStream out, int blockSize, OutputStream cat) {
+		TarOutputStream tar = new TarOutputStream(out, blockSize, ENCODING) {
+
+			private boolean content = false;
+
+			@Override
+			public void putNextEntry(TarEntry entry) throws IOException {
+				normalize(entry);
+				super.putNextEntry(entry);
+				content = cat != null && entry.isFile() && !entry.isPaxHeader();
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				super.write(b, off, len);
+				if (content) {
+					cat.write(b, off, len);
+				}
+			}
+		};
+		tar.setLongFileMode(TarOutputStream.LONGFILE_POSIX);
+		return tar;
+	}
+
+	public void write(TarOutputStream out, List<TarFileSet> files) throws IOException {
+		if (isReproducible()) {
+			for (Entry entry : getEntries(files).values()) {
+				write(out, entry);
+			}
+			return;
+		}
+
+		for (TarFileSet fileset : files) {
+			if (fileset != null) {
+				init(fileset);
+				tar(fileset, out);
+			}
+		}
+	}
+
+	/**
+	 * List all tar entries (path, mode, ownership, link, size and content hash) without writing an actual tar archive.
+	 */
+	public List<String> list(List<TarFileSet> files) throws IOException {
+		List<String> entries = new ArrayList<String>();
+
+		try (TarOutputStream out = new TarOutputStream(new OutputStream() {
+
+			@Override
+			public void write(int b) {
+				// discard
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+				// discard
+			}
+		}, ENCODING) {
+
+			private TarEntry entry;
+			private MessageDigest digest;
+
+			@Override
+			public void putNextEntry(TarEntry entry) {
+				this.entry = entry;
+				this.digest = getMessageDigest("SHA-256");
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+				digest.update(b, off, len);
+			}
+
+			@Override
+			public void closeEntry() {
+				entries.add(String.join("\t", entry.getName(), Integer.toOctalString(entry.getMode()), entry.getUserName() + ':' + entry.getGroupName(), entry.getLongUserId() + ":" + entry.getLongGroupId(), entry.getLinkName(), String.valueOf(entry.getSize()), hex(digest.digest())));
+			}
+		}) {
+			write(out, files);
+		}
+
+		return entries;
+	}
+
+	public void write(TarOutputStream out, Entry entry) throws IOException {
+		tarResource(entry.resource, out, entry.path, entry.fileset);
+	}
+
+	/**
+	 * Collect tar entries in case-sensitive alphabetical tar entry path order.
+	 */
+	public SortedMap<String, Entry> getEntries(List<TarFileSet> files) {
+		SortedMap<String, Entry> entries = new TreeMap<String, Entry>();
+		for (TarFileSet fileset : files) {
+			if (fileset != null) {
+				init(fileset);
+
+				if (fileset.size() > 1 && !fileset.getFullpath(getProject()).isEmpty()) {
+					throw new BuildException("fullpath attribute may only be specified for filesets that specify a single file.");
+				}
+
+				if (isFileFileSet(fileset)) {
+					for (String name : getFileNames(fileset)) {
+						File file = new File(fileset.getDir(getProject()), name);
+						put(entries, new FileResource(file), name.replace(File.separatorChar, '/'), fileset);
+					}
+				} else {
+					for (Resource resource : fileset) {
+						put(entries, resource, resource.getName(), fileset);
+					}
+				}
+			}
+		}
+		return entries;
+	}
+
+	private void put(SortedMap<String, Entry> entries, Resource resource, String vPath, TarFileSet fileset) {
+		String name = getEntryName(vPath, resource.isDirectory(), fileset);
+		if (name != null) {
+			entries.put(name, new Entry(resource, vPath, fileset));
+		}
+	}
+
+	public String getEntryName(String vPath, boolean directory, TarFileSet fileset) {
+		// same as Tar.tarResource()
+		String fullpath = fileset.getFullpath(getProject());
+		if (fullpath.isEmpty()) {
+			// don't add "" to the archive
+			if (vPath.isEmpty()) {
+				return null;
+			}
+
+			String prefix = fileset.getPrefix(getProject());
+			if (prefix.isEmpty() || prefix.endsWith("/")) {
+				vPath = prefix + vPath;
+			} else {
+				vPath = prefix + '/' + vPath;
+			}
+		} else {
+			vPath = fullpath;
+		}
+
+		if (vPath.startsWith("/") && !fileset.getPreserveLeadingSlashes()) {
+			if (vPath.length() <= 1) {
+				return null;
+			}
+			vPath = vPath.substring(1);
+		}
+
+		if (directory && !vPath.endsWith("/")) {
+			vPath += "/";
+		}
+
+		return vPath;
+	}
+
+	private void init(TarFileSet fileset) {
+		// make sure the tarfileset element is initialized with all the project information it may need
+		fileset.setProject(getProject());
+		fileset.setLocation(getLocation());
+	}
+
+	public static class Entry {
+
+		final Resource resource;
+		final String path;
+		final TarFileSet fileset;
+
+		public Entry(Resource resource, String path, TarFileSet fileset) {
+			this.resource = resource;
+			this.path = path;
+			this.fileset = fileset;
+		}
+
+		public Entry(String name, byte[] bytes) {
+			this(new Resource(name, true, System.currentTimeMillis(), false, bytes.length) {
+
+				@Override
+				public InputStream getInputStream() {
+					return new ByteArrayInputStream(bytes);
+				}
+			}, name, null);
+		}
+
+		public Resource getResource() {
+			return resource;
+		}
+
+	}
+
+}
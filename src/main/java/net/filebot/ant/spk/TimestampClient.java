@@ -0,0 +1,107 @@
+package net.filebot.ant.spk;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.client.HttpResponseException;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.mime.MultipartEntityBuilder;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * Submit signatures to the Synology timestamp server. All requests share a single pool of keep-alive connections, and failed requests are retried with exponential backoff.
+ */
+public class TimestampClient {
+
+	public static final int MAX_CONNECTIONS = 16;
+
+	// shared by all code sign tasks in this build
+	private static final CloseableHttpClient httpClient = HttpClientBuilder.create().setMaxConnTotal(MAX_CONNECTIONS).setMaxConnPerRoute(MAX_CONNECTIONS).disableAutomaticRetries().build();
+	private static final Map<String, Semaphore> permits = new ConcurrentHashMap<String, Semaphore>();
+
+	private final String url;
+	private final RequestConfig config;
+	private final int retries;
+	private final long backoff;
+	private final int concurrency;
+
+	public TimestampClient(String url, int connectTimeout, int readTimeout, int retries, long backoff, int concurrency) {
+		this.url = url;
+		this.config = RequestConfig.custom().setConnectTimeout(connectTimeout).setSocketTimeout(readTimeout).setConnectionRequestTimeout(readTimeout).build();
+		this.retries = retries;
+		this.backoff = backoff;
+		this.concurrency = Math.max(1, Math.min(concurrency, MAX_CONNECTIONS));
+	}
+
+	public byte[] timestamp(byte[] signature, Consumer<String> log) throws IOException {
+		// limit the number of concurrent requests per timestamp server
+		Semaphore semaphore = permits.computeIfAbsent(url, k -> new Semaphore(concurrency));
+		try {
+			semaphore.acquire();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException(e.getMessage());
+		}
+
+		try {
+			for (int attempt = 0;; attempt++) {
+				try {
+					return post(signature);
+				} catch (IOException e) {
+					if (attempt >= retries || !isRetryable(e) || Thread.currentThread().isInterrupted()) {
+						throw e;
+					}
+
+					long delay = backoff << attempt;
+					log.accept(String.format("SYNO: %s (retry in %,d ms)", e.getMessage(), delay));
+					Thread.sleep(delay);
+				}
+			}
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException(e.getMessage());
+		} finally {
+			semaphore.release();
+		}
+	}
+
+	private boolean isRetryable(IOException e) {
+		// retry on connection errors (including connect and read timeouts), server errors and rate limiting, but not on client errors
+		if (e instanceof HttpResponseException) {
+			int status = ((HttpResponseException) e).getStatusCode();
+			return status >= 500 || status == 429;
+		}
+		return true;
+	}
+
+	private byte[] post(byte[] signature) throws IOException {
+		HttpPost httpPost = new HttpPost(url);
+		httpPost.setConfig(config);
+
+		// timestamp.synology.com requires the full Content-Disposition head to be sent, including the filename section, e.g. Content-Disposition: form-data; name="file"; filename="ALLCAT.dat.asc"
+		HttpEntity pastData = MultipartEntityBuilder.create().addBinaryBody("file", signature, ContentType.DEFAULT_BINARY, UUID.randomUUID().toString()).build();
+		httpPost.setEntity(pastData);
+
+		try (CloseableHttpResponse response = httpClient.execute(httpPost)) {
+			byte[] token = EntityUtils.toByteArray(response.getEntity());
+			int status = response.getStatusLine().getStatusCode();
+			if (status != 200) {
+				throw new HttpResponseException(status, response.getStatusLine().toString());
+			}
+			if (token == null || token.length == 0) {
+				throw new IOException("Empty response");
+			}
+			return token;
+		}
+	}
+
+}
@@ -0,0 +1,135 @@
+package net.filebot.ant.spk;
+
+import static java.nio.charset.StandardCharsets.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Task;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local stand-in for the Synology timestamp server. The uploaded signature is sent back as is, so that signed builds can be tested offline without any requests to timestamp.synology.com.
+ */
+public class TimestampServerTask extends Task {
+
+	public static final Pattern SIGNATURE = Pattern.compile("-----BEGIN PGP SIGNATURE-----.*?-----END PGP SIGNATURE-----\\r?\\n?", Pattern.DOTALL);
+
+	String host = "127.0.0.1";
+	int port = 8081;
+	int workers = 4;
+	boolean daemon = false; // block until interrupted by default
+
+	long latency = 0; // respond immediately by default
+	int errors = 0; // number of requests that fail with 503 before the server starts responding normally
+
+	public void setHost(String value) {
+		host = value;
+	}
+
+	public void setPort(int value) {
+		port = value;
+	}
+
+	public void setWorkers(int value) {
+		workers = value;
+	}
+
+	public void setDaemon(boolean value) {
+		daemon = value;
+	}
+
+	public void setLatency(long value) {
+		latency = value;
+	}
+
+	public void setErrors(int value) {
+		errors = value;
+	}
+
+	@Override
+	public void execute() throws BuildException {
+		AtomicInteger count = new AtomicInteger();
+
+		HttpServer server;
+		ExecutorService executor = Executors.newFixedThreadPool(workers);
+		try {
+			server = HttpServer.create(new InetSocketAddress(host, port), 0);
+			server.createContext("/", exchange -> handle(exchange, count.incrementAndGet()));
+			server.setExecutor(executor);
+			server.start();
+		} catch (IOException e) {
+			executor.shutdownNow();
+			throw new BuildException("Failed to start server: " + e.getMessage(), e);
+		}
+
+		log(String.format("Serving timestamp requests on http://%s:%d/", host, server.getAddress().getPort()));
+		if (daemon) {
+			return;
+		}
+
+		try {
+			synchronized (this) {
+				wait();
+			}
+		} catch (InterruptedException e) {
+			log("Stop server");
+		} finally {
+			server.stop(0);
+			executor.shutdownNow();
+		}
+	}
+
+	private void handle(HttpExchange exchange, int request) throws IOException {
+		try {
+			ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+			try (InputStream in = exchange.getRequestBody()) {
+				byte[] b = new byte[8192];
+				int n = 0;
+				while ((n = in.read(b)) != -1) {
+					buffer.write(b, 0, n);
+				}
+			}
+
+			if (latency > 0) {
+				Thread.sleep(latency);
+			}
+
+			if (request <= errors) {
+				log("Simulate error for request #" + request);
+				exchange.sendResponseHeaders(503, -1);
+				return;
+			}
+
+			// multipart form data is ascii-armored text so we can just search for the signature block
+			Matcher matcher = SIGNATURE.matcher(new String(buffer.toByteArray(), ISO_8859_1));
+			if (!"POST".equals(exchange.getRequestMethod()) || !matcher.find()) {
+				exchange.sendResponseHeaders(400, -1);
+				return;
+			}
+
+			byte[] body = matcher.group().getBytes(ISO_8859_1);
+			exchange.getResponseHeaders().set("Content-Type", "text/plain");
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(body);
+			}
+		} catch (InterruptedException e) {
+			exchange.sendResponseHeaders(503, -1);
+		} finally {
+			exchange.close();
+		}
+	}
+
+}
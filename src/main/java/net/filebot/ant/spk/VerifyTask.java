@@ -0,0 +1,336 @@
+package net.filebot.ant.spk;
+
+import static java.nio.charset.StandardCharsets.*;
+import static net.filebot.ant.spk.PackageTask.*;
+import static net.filebot.ant.spk.RepositoryTask.*;
+import static net.filebot.ant.spk.util.Digest.*;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import javax.json.JsonNumber;
+import javax.json.JsonObject;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Task;
+import org.apache.tools.ant.types.FileSet;
+import org.apache.tools.ant.types.Resource;
+import org.apache.tools.ant.types.ResourceCollection;
+import org.apache.tools.ant.types.resources.FileProvider;
+import org.apache.tools.ant.types.resources.Union;
+import org.apache.tools.tar.TarEntry;
+import org.apache.tools.zip.ZipEncoding;
+import org.apache.tools.zip.ZipEncodingHelper;
+import org.bouncycastle.openpgp.PGPPublicKeyRing;
+
+import net.filebot.ant.spk.pgp.OpenPGPVerifier;
+
+/**
+ * Verify SPK files before publishing. Check the signature, the package.tgz checksum and (optionally) the size and checksums in the given package source file.
+ */
+public class VerifyTask extends Task {
+
+	Union spks = new Union();
+	Union keyrings = new Union();
+
+	File index; // don't cross-check package source by default
+	int threads = Runtime.getRuntime().availableProcessors();
+	boolean failOnError = true;
+
+	public void addConfiguredSPK(FileSet files) {
+		spks.add(files);
+	}
+
+	public void addConfiguredSPK(ResourceCollection files) {
+		spks.add(files);
+	}
+
+	public void addConfiguredKeyRing(FileSet key) {
+		keyrings.add(key);
+	}
+
+	public void addConfiguredKeyRing(ResourceCollection key) {
+		keyrings.add(key);
+	}
+
+	public void setIndex(File file) {
+		index = file;
+	}
+
+	public void setThreads(int value) {
+		threads = value;
+	}
+
+	public void setFailOnError(boolean value) {
+		failOnError = value;
+	}
+
+	@Override
+	public void execute() throws BuildException {
+		List<File> files = new ArrayList<File>();
+		for (Resource r : spks) {
+			files.add(r.as(FileProvider.class).getFile());
+		}
+
+		if (files.isEmpty()) {
+			throw new BuildException("Required elements: spk");
+		}
+
+		List<PGPPublicKeyRing> keys = new ArrayList<PGPPublicKeyRing>();
+		Map<String, List<JsonObject>> packages = new HashMap<String, List<JsonObject>>();
+
+		try {
+			for (Resource r : keyrings) {
+				log("Include keyring: " + r.getName());
+				try (InputStream in = r.getInputStream()) {
+					keys.addAll(OpenPGPVerifier.readPublicKeys(in));
+				}
+			}
+
+			if (index != null) {
+				log("Include package source: " + index);
+				readSource(index, k -> {
+					try {
+						keys.addAll(OpenPGPVerifier.readPublicKeys(new ByteArrayInputStream(k.getBytes(US_ASCII))));
+					} catch (IOException e) {
+						throw new BuildException("Failed to read keyring: " + e.getMessage(), e);
+					}
+				}, p -> {
+					String link = p.getString(LINK, "");
+					packages.computeIfAbsent(link.substring(link.lastIndexOf('/') + 1), k -> new ArrayList<JsonObject>()).add(p);
+				});
+			}
+		} catch (IOException e) {
+			throw new BuildException("Failed to read keyring: " + e.getMessage(), e);
+		}
+
+		log(String.format("Verify %d SPK files (%d public keys, %d threads)", files.size(), keys.size(), threads));
+		long start = System.nanoTime();
+		AtomicLong bytes = new AtomicLong();
+		int failed = 0;
+
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<List<String>>> results = new ArrayList<Future<List<String>>>();
+			for (File file : files) {
+				results.add(executor.submit(() -> {
+					bytes.addAndGet(file.length());
+					return verify(file, keys, packages.get(file.getName()));
+				}));
+			}
+
+			// report results in the given order
+			for (int i = 0; i < files.size(); i++) {
+				List<String> errors = results.get(i).get();
+				if (errors.isEmpty()) {
+					log("OK: " + files.get(i));
+				} else {
+					failed++;
+					log("FAILED: " + files.get(i), Project.MSG_ERR);
+					errors.forEach(e -> log("\t" + e, Project.MSG_ERR));
+				}
+			}
+		} catch (Exception e) {
+			throw new BuildException("Failed to verify SPK: " + e.getMessage(), e);
+		} finally {
+			executor.shutdownNow();
+		}
+
+		double seconds = (System.nanoTime() - start) / 1e9;
+		log(String.format("Verified %d SPK files (%,d bytes) in %,.1f s: %,.1f MB/s, %,.1f files/s", files.size(), bytes.get(), seconds, bytes.get() / seconds / 1e6, files.size() / seconds));
+
+		if (failed > 0 && failOnError) {
+			throw new BuildException(String.format("%d of %d SPK files failed verification", failed, files.size()));
+		}
+	}
+
+	/**
+	 * Verify the given SPK file and return all errors.
+	 */
+	protected List<String> verify(File file, List<PGPPublicKeyRing> keys, List<JsonObject> packages) throws Exception {
+		List<String> errors = new ArrayList<String>();
+
+		// scan tar headers for entry order, offsets and sizes
+		Map<String, byte[]> entries = new HashMap<String, byte[]>();
+		Map<String, long[]> entryIndex;
+		try (SpkReader spk = new SpkReader(file)) {
+			entryIndex = spk.list();
+			for (String name : new String[] { INFO, SYNO_SIGNATURE }) {
+				if (entryIndex.containsKey(name)) {
+					entries.put(name, spk.read(entryIndex.get(name)[0], entryIndex.get(name)[1]));
+				}
+			}
+		}
+
+		List<String> names = entryIndex.keySet().stream().filter(name -> !SYNO_SIGNATURE.equals(name)).collect(Collectors.toList());
+
+		OpenPGPVerifier verifier = null;
+		byte[] signatureFile = entries.get(SYNO_SIGNATURE);
+		if (signatureFile != null && keys.size() > 0) {
+			verifier = new OpenPGPVerifier(signatureFile, keys);
+		} else if (signatureFile == null && keys.size() > 0) {
+			errors.add("Missing " + SYNO_SIGNATURE);
+		}
+
+		// the signature covers all files in case-sensitive alphabetical tar entry path order, so we can verify in a single pass if the tar is in that order already
+		boolean sorted = names.stream().sorted().collect(Collectors.toList()).equals(names);
+		Map<String, String> digest = stream(file, verifier != null && sorted ? verifier.getOutputStream() : null);
+
+		if (verifier != null) {
+			if (!sorted) {
+				log("Entries are not in tar entry path order: " + file, Project.MSG_VERBOSE);
+				try (SpkReader spk = new SpkReader(file); OutputStream cat = verifier.getOutputStream()) {
+					for (String name : names.stream().sorted().toArray(String[]::new)) {
+						spk.copy(entryIndex.get(name)[0], entryIndex.get(name)[1], cat);
+					}
+				}
+			}
+
+			try {
+				List<String> signers = verifier.verify();
+				if (signers.isEmpty()) {
+					errors.add("Unknown signature key: " + verifier.getUnknownKeys());
+				} else {
+					log(String.format("Good signature from %s: %s", signers, file), Project.MSG_VERBOSE);
+				}
+			} catch (Exception e) {
+				errors.add(e.getMessage());
+			}
+		}
+
+		Map<String, String> info = readInfo(entries.get(INFO));
+		String checksum = digest.get(PACKAGE_TGZ);
+		if (info.isEmpty()) {
+			errors.add("Missing " + INFO);
+		} else if (checksum == null) {
+			errors.add("Missing " + PACKAGE_TGZ);
+		} else if (info.containsKey("checksum") && !checksum.equals(info.get("checksum"))) {
+			errors.add(String.format("%s checksum mismatch: %s != %s", PACKAGE_TGZ, info.get("checksum"), checksum));
+		}
+
+		if (packages != null) {
+			for (JsonObject p : packages) {
+				check(errors, p, PACKAGE, info.get(PACKAGE));
+				check(errors, p, VERSION, info.get(VERSION));
+				check(errors, p, MD5, digest.get(MD5));
+				check(errors, p, SHA256, digest.get(SHA256));
+				check(errors, p, SIZE, String.valueOf(file.length()));
+			}
+		} else if (index != null) {
+			log("Not in package source: " + file, Project.MSG_WARN);
+		}
+
+		return errors;
+	}
+
+	private void check(List<String> errors, JsonObject json, String key, String value) {
+		if (json.containsKey(key)) {
+			String expected = json.get(key) instanceof JsonNumber ? json.getJsonNumber(key).toString() : json.getString(key, null);
+			if (!String.valueOf(expected).equals(value)) {
+				errors.add(String.format("Package source %s mismatch: %s != %s", key, expected, value));
+			}
+		}
+	}
+
+	/**
+	 * Read the whole SPK file once and compute the file checksums and the package.tgz checksum, and copy the content of all files except the signature to the given cat stream (if any).
+	 */
+	private Map<String, String> stream(File file, OutputStream cat) throws IOException {
+		ZipEncoding encoding = ZipEncodingHelper.getZipEncoding(TarWriter.ENCODING);
+
+		MessageDigest md5 = getMessageDigest("MD5");
+		MessageDigest sha256 = getMessageDigest("SHA-256");
+		MessageDigest packageMd5 = null;
+
+		byte[] buffer = new byte[64 * 1024];
+		byte[] header = new byte[SpkReader.RECORD_SIZE];
+
+		try (InputStream in = new DigestInputStream(new DigestInputStream(new BufferedInputStream(Files.newInputStream(file.toPath()), BUFFER_SIZE), md5), sha256)) {
+			String longName = null;
+
+			while (readFully(in, header, header.length) && !SpkReader.isZero(header)) {
+				TarEntry entry = new TarEntry(header, encoding);
+				long size = entry.getSize();
+				long padding = (SpkReader.RECORD_SIZE - size % SpkReader.RECORD_SIZE) % SpkReader.RECORD_SIZE;
+
+				// long file names are stored in the preceding pax or gnu header entry
+				if (entry.isPaxHeader() || entry.isGNULongNameEntry()) {
+					byte[] bytes = new byte[(int) size];
+					if (!readFully(in, bytes, bytes.length)) {
+						throw new EOFException();
+					}
+					longName = entry.isPaxHeader() ? SpkReader.getPaxPath(bytes) : SpkReader.trim(new String(bytes, UTF_8));
+				} else {
+					String name = longName != null ? longName : entry.getName();
+					longName = null;
+
+					OutputStream content = cat != null && !entry.isDirectory() && !SYNO_SIGNATURE.equals(name) ? cat : null;
+					if (PACKAGE_TGZ.equals(name)) {
+						packageMd5 = getMessageDigest("MD5");
+					}
+
+					for (long n = size; n > 0;) {
+						int length = in.read(buffer, 0, (int) Math.min(buffer.length, n));
+						if (length < 0) {
+							throw new EOFException();
+						}
+						if (content != null) {
+							content.write(buffer, 0, length);
+						}
+						if (PACKAGE_TGZ.equals(name)) {
+							packageMd5.update(buffer, 0, length);
+						}
+						n -= length;
+					}
+				}
+
+				if (!readFully(in, buffer, (int) padding)) {
+					throw new EOFException();
+				}
+			}
+
+			// end of archive records and block padding
+			while (in.read(buffer) >= 0) {
+				continue;
+			}
+		}
+
+		Map<String, String> digest = new HashMap<String, String>();
+		digest.put(MD5, hex(md5.digest()));
+		digest.put(SHA256, hex(sha256.digest()));
+		if (packageMd5 != null) {
+			digest.put(PACKAGE_TGZ, hex(packageMd5.digest()));
+		}
+		return digest;
+	}
+
+	private static boolean readFully(InputStream in, byte[] buffer, int length) throws IOException {
+		for (int n = 0; n < length;) {
+			int r = in.read(buffer, n, length - n);
+			if (r < 0) {
+				return false;
+			}
+			n += r;
+		}
+		return true;
+	}
+
+}
@@ -0,0 +1,82 @@
+package net.filebot.ant.spk.pgp;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.openpgp.PGPException;
+import org.bouncycastle.openpgp.PGPPrivateKey;
+import org.bouncycastle.openpgp.operator.PBESecretKeyDecryptor;
+import org.bouncycastle.openpgp.operator.PGPContentSignerBuilder;
+import org.bouncycastle.openpgp.operator.PGPDigestCalculatorProvider;
+import org.bouncycastle.openpgp.operator.jcajce.JcaPGPContentSignerBuilder;
+import org.bouncycastle.openpgp.operator.jcajce.JcaPGPDigestCalculatorProviderBuilder;
+import org.bouncycastle.openpgp.operator.jcajce.JcePBESecretKeyDecryptorBuilder;
+
+/**
+ * Process-wide cache of decrypted private keys, so that the secring is read and the passphrase is run through S2K only once per key and not once per signature.
+ */
+public class OpenPGPKeyCache {
+
+	private static final Map<String, Entry> cache = new HashMap<String, Entry>();
+
+	public static synchronized Entry get(String keyId, File secring, char[] password) throws IOException, PGPException {
+		// secring may be modified or replaced during the build
+		String key = String.join("\t", secring.getCanonicalPath(), String.valueOf(secring.lastModified()), String.valueOf(secring.length()), String.valueOf(keyId));
+
+		Entry entry = cache.get(key);
+		if (entry != null && Arrays.equals(entry.password, password)) {
+			return entry;
+		}
+
+		try (InputStream secretKeyRing = new FileInputStream(secring)) {
+			entry = new Entry(new OpenPGPSecretKey(keyId, secretKeyRing, password));
+		}
+
+		cache.put(key, entry);
+		return entry;
+	}
+
+	public static synchronized void clear() {
+		cache.values().forEach(Entry::destroy);
+		cache.clear();
+	}
+
+	public static class Entry {
+
+		private final PGPPrivateKey privateKey;
+		private final int keyAlgorithm;
+		private final char[] password;
+
+		private final Map<String, PGPContentSignerBuilder> contentSigners = new ConcurrentHashMap<String, PGPContentSignerBuilder>();
+
+		public Entry(OpenPGPSecretKey key) throws PGPException {
+			PGPDigestCalculatorProvider pgpDigestCalculator = new JcaPGPDigestCalculatorProviderBuilder().setProvider(BouncyCastleProvider.PROVIDER_NAME).build();
+			PBESecretKeyDecryptor pbeSecretKeyDecryptor = new JcePBESecretKeyDecryptorBuilder(pgpDigestCalculator).setProvider(BouncyCastleProvider.PROVIDER_NAME).build(key.getPassword());
+
+			this.privateKey = key.getSecretKey().extractPrivateKey(pbeSecretKeyDecryptor);
+			this.keyAlgorithm = key.getSecretKey().getPublicKey().getAlgorithm();
+			this.password = key.getPassword().clone();
+		}
+
+		public PGPPrivateKey getPrivateKey() {
+			return privateKey;
+		}
+
+		public PGPContentSignerBuilder getContentSigner(int hashAlgorithm, String provider) {
+			return contentSigners.computeIfAbsent(hashAlgorithm + ":" + provider, k -> OpenPGPSignature.createContentSignerBuilder(keyAlgorithm, hashAlgorithm, provider));
+		}
+
+		private void destroy() {
+			Arrays.fill(password, '\0');
+		}
+
+	}
+
+}
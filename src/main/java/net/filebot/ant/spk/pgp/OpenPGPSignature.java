@@ -2,10 +2,9 @@ package net.filebot.ant.spk.pgp;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.OutputStream;
 import java.security.Security;
 import java.security.SignatureException;
 
@@ -14,14 +13,10 @@ import org.bouncycastle.bcpg.BCPGOutputStream;
 import org.bouncycastle.bcpg.HashAlgorithmTags;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.bouncycastle.openpgp.PGPException;
-import org.bouncycastle.openpgp.PGPPrivateKey;
 import org.bouncycastle.openpgp.PGPSignature;
 import org.bouncycastle.openpgp.PGPSignatureGenerator;
-import org.bouncycastle.openpgp.operator.PBESecretKeyDecryptor;
-import org.bouncycastle.openpgp.operator.PGPDigestCalculatorProvider;
+import org.bouncycastle.openpgp.operator.PGPContentSignerBuilder;
 import org.bouncycastle.openpgp.operator.jcajce.JcaPGPContentSignerBuilder;
-import org.bouncycastle.openpgp.operator.jcajce.JcaPGPDigestCalculatorProviderBuilder;
-import org.bouncycastle.openpgp.operator.jcajce.JcePBESecretKeyDecryptorBuilder;
 
 public class OpenPGPSignature {
 
@@ -29,23 +24,46 @@ public class OpenPGPSignature {
 		Security.addProvider(new BouncyCastleProvider());
 	}
 
+	public static final int DEFAULT_HASH_ALGORITHM = HashAlgorithmTags.SHA1;
+
 	private PGPSignatureGenerator signature;
 
 	public OpenPGPSignature(OpenPGPSecretKey key) throws PGPException {
-		PGPDigestCalculatorProvider pgpDigestCalculator = new JcaPGPDigestCalculatorProviderBuilder().setProvider(BouncyCastleProvider.PROVIDER_NAME).build();
-		PBESecretKeyDecryptor pbeSecretKeyDecryptor = new JcePBESecretKeyDecryptorBuilder(pgpDigestCalculator).setProvider(BouncyCastleProvider.PROVIDER_NAME).build(key.getPassword());
-		JcaPGPContentSignerBuilder pgpContentSigner = new JcaPGPContentSignerBuilder(key.getSecretKey().getPublicKey().getAlgorithm(), HashAlgorithmTags.SHA1).setProvider(BouncyCastleProvider.PROVIDER_NAME).setDigestProvider(BouncyCastleProvider.PROVIDER_NAME);
-
-		signature = new PGPSignatureGenerator(pgpContentSigner);
+		this(new OpenPGPKeyCache.Entry(key), DEFAULT_HASH_ALGORITHM, null);
+	}
 
-		PGPPrivateKey privateKey = key.getSecretKey().extractPrivateKey(pbeSecretKeyDecryptor);
-		signature.init(PGPSignature.BINARY_DOCUMENT, privateKey);
+	public OpenPGPSignature(OpenPGPKeyCache.Entry key, int hashAlgorithm, String provider) throws PGPException {
+		// signature generators are stateful, but the private key and the content signer builder can be shared
+		signature = new PGPSignatureGenerator(key.getContentSigner(hashAlgorithm, provider));
+		signature.init(PGPSignature.BINARY_DOCUMENT, key.getPrivateKey());
 	}
 
 	public void update(byte[] buffer, int offset, int length) throws SignatureException {
 		signature.update(buffer, offset, length);
 	}
 
+	/**
+	 * Stream view for updating the signature with arbitrary data.
+	 */
+	public OutputStream getOutputStream() {
+		return new OutputStream() {
+
+			@Override
+			public void write(int b) throws IOException {
+				write(new byte[] { (byte) b }, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				try {
+					update(b, off, len);
+				} catch (SignatureException e) {
+					throw new IOException(e);
+				}
+			}
+		};
+	}
+
 	public byte[] generate() throws IOException, SignatureException, PGPException {
 		ByteArrayOutputStream buffer = new ByteArrayOutputStream(1024);
 
@@ -58,10 +76,38 @@ public class OpenPGPSignature {
 	}
 
 	public static OpenPGPSignature createSignatureGenerator(String keyId, File secring, char[] password) throws FileNotFoundException, IOException, PGPException {
-		try (InputStream secretKeyRing = new FileInputStream(secring)) {
-			OpenPGPSecretKey key = new OpenPGPSecretKey(keyId, secretKeyRing, password);
-			OpenPGPSignature signature = new OpenPGPSignature(key);
-			return signature;
+		return createSignatureGenerator(keyId, secring, password, DEFAULT_HASH_ALGORITHM, null);
+	}
+
+	public static OpenPGPSignature createSignatureGenerator(String keyId, File secring, char[] password, int hashAlgorithm, String provider) throws FileNotFoundException, IOException, PGPException {
+		return new OpenPGPSignature(OpenPGPKeyCache.get(keyId, secring, password), hashAlgorithm, provider);
+	}
+
+	/**
+	 * Every signed byte goes through both the digest and the signature of the given provider. Use the JCA default providers if no provider is given, so that the JDK digest implementations (and their HotSpot intrinsics) are preferred over BouncyCastle.
+	 */
+	public static PGPContentSignerBuilder createContentSignerBuilder(int keyAlgorithm, int hashAlgorithm, String provider) {
+		JcaPGPContentSignerBuilder builder = new JcaPGPContentSignerBuilder(keyAlgorithm, hashAlgorithm);
+		if (provider != null && provider.length() > 0) {
+			builder.setProvider(provider);
+		}
+		return builder;
+	}
+
+	public static int getHashAlgorithm(String name) {
+		switch (name.replace("-", "").toUpperCase()) {
+		case "SHA1":
+			return HashAlgorithmTags.SHA1;
+		case "SHA224":
+			return HashAlgorithmTags.SHA224;
+		case "SHA256":
+			return HashAlgorithmTags.SHA256;
+		case "SHA384":
+			return HashAlgorithmTags.SHA384;
+		case "SHA512":
+			return HashAlgorithmTags.SHA512;
+		default:
+			throw new IllegalArgumentException("Unsupported hash algorithm: " + name);
 		}
 	}
 
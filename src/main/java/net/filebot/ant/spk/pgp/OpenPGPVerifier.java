@@ -0,0 +1,119 @@
+package net.filebot.ant.spk.pgp;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bouncycastle.openpgp.PGPException;
+import org.bouncycastle.openpgp.PGPPublicKey;
+import org.bouncycastle.openpgp.PGPPublicKeyRing;
+import org.bouncycastle.openpgp.PGPSignature;
+import org.bouncycastle.openpgp.PGPSignatureList;
+import org.bouncycastle.openpgp.PGPUtil;
+import org.bouncycastle.openpgp.bc.BcPGPObjectFactory;
+import org.bouncycastle.openpgp.operator.jcajce.JcaPGPContentVerifierBuilderProvider;
+
+/**
+ * Verify detached signatures (e.g. syno_signature.asc) against a set of public keys. All signatures made by known keys are updated in a single pass over the signed data.
+ */
+public class OpenPGPVerifier {
+
+	private final List<PGPSignature> signatures = new ArrayList<PGPSignature>();
+	private final List<String> unknownKeys = new ArrayList<String>();
+
+	public OpenPGPVerifier(byte[] signatureFile, List<PGPPublicKeyRing> keyrings) throws IOException, PGPException {
+		for (PGPSignature signature : readSignatures(signatureFile)) {
+			PGPPublicKey key = getPublicKey(keyrings, signature.getKeyID());
+			if (key == null) {
+				unknownKeys.add(getKeyId(signature.getKeyID()));
+				continue;
+			}
+
+			signature.init(new JcaPGPContentVerifierBuilderProvider(), key);
+			signatures.add(signature);
+		}
+	}
+
+	/**
+	 * Stream view for updating all signatures with the signed data.
+	 */
+	public OutputStream getOutputStream() {
+		return new OutputStream() {
+
+			@Override
+			public void write(int b) throws IOException {
+				write(new byte[] { (byte) b }, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				for (PGPSignature signature : signatures) {
+					signature.update(b, off, len);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Return the key ids of all valid signatures, or throw an exception if any signature made by a known key is invalid.
+	 */
+	public List<String> verify() throws PGPException {
+		List<String> keys = new ArrayList<String>();
+		for (PGPSignature signature : signatures) {
+			if (!signature.verify()) {
+				throw new PGPException("Bad signature from key " + getKeyId(signature.getKeyID()));
+			}
+			keys.add(getKeyId(signature.getKeyID()));
+		}
+		return keys;
+	}
+
+	public List<String> getUnknownKeys() {
+		return unknownKeys;
+	}
+
+	public static List<PGPSignature> readSignatures(byte[] signatureFile) throws IOException {
+		List<PGPSignature> signatures = new ArrayList<PGPSignature>();
+		try (InputStream in = PGPUtil.getDecoderStream(new ByteArrayInputStream(signatureFile))) {
+			BcPGPObjectFactory pgpObjectFactory = new BcPGPObjectFactory(in);
+			for (Object it = pgpObjectFactory.nextObject(); it != null; it = pgpObjectFactory.nextObject()) {
+				if (it instanceof PGPSignatureList) {
+					((PGPSignatureList) it).forEach(signatures::add);
+				}
+			}
+		}
+		return signatures;
+	}
+
+	/**
+	 * Read all public keys from the given keyring (ascii-armored or binary).
+	 */
+	public static List<PGPPublicKeyRing> readPublicKeys(InputStream keyring) throws IOException {
+		List<PGPPublicKeyRing> keyrings = new ArrayList<PGPPublicKeyRing>();
+		BcPGPObjectFactory pgpObjectFactory = new BcPGPObjectFactory(PGPUtil.getDecoderStream(keyring));
+		for (Object it = pgpObjectFactory.nextObject(); it != null; it = pgpObjectFactory.nextObject()) {
+			if (it instanceof PGPPublicKeyRing) {
+				keyrings.add((PGPPublicKeyRing) it);
+			}
+		}
+		return keyrings;
+	}
+
+	private static PGPPublicKey getPublicKey(List<PGPPublicKeyRing> keyrings, long keyId) {
+		for (PGPPublicKeyRing keyring : keyrings) {
+			PGPPublicKey key = keyring.getPublicKey(keyId);
+			if (key != null) {
+				return key;
+			}
+		}
+		return null;
+	}
+
+	private static String getKeyId(long keyId) {
+		return String.format("%08X", keyId & 0xFFFFFFFFL);
+	}
+
+}
@@ -0,0 +1,139 @@
+package net.filebot.ant.spk.util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Split the data into fixed-size blocks and compress each block on its own thread. Compressed blocks are written in order.
+ */
+public abstract class BlockCompressionOutputStream extends OutputStream {
+
+	private final OutputStream out;
+	private final ExecutorService executor;
+	private final int threads;
+	private final int blockSize;
+
+	private final Deque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+
+	private byte[] block;
+	private int length = 0;
+
+	private byte[] previousBlock = null;
+	private int previousLength = 0;
+
+	private boolean closed = false;
+
+	public BlockCompressionOutputStream(OutputStream out, int threads, int blockSize) {
+		this.out = out;
+		this.threads = threads;
+		this.blockSize = blockSize;
+		this.block = new byte[blockSize];
+		this.executor = Executors.newFixedThreadPool(threads, r -> {
+			Thread thread = new Thread(r, getClass().getSimpleName());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Compress a single block. The previous block (if any) may be used as preset dictionary.
+	 */
+	protected abstract byte[] compress(byte[] block, int length, byte[] previousBlock, int previousLength, boolean last) throws IOException;
+
+	protected void update(byte[] b, int off, int len) {
+		// called in order for all uncompressed data (e.g. for computing checksums)
+	}
+
+	protected void writeHeader(OutputStream out) throws IOException {
+		// no header by default
+	}
+
+	protected void writeTrailer(OutputStream out) throws IOException {
+		// no trailer by default
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (closed) {
+			throw new IOException("Stream closed");
+		}
+
+		update(b, off, len);
+
+		while (len > 0) {
+			int n = Math.min(len, blockSize - length);
+			System.arraycopy(b, off, block, length, n);
+			length += n;
+			off += n;
+			len -= n;
+
+			if (length == blockSize) {
+				submit(false);
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+
+		try {
+			submit(true);
+			while (!pending.isEmpty()) {
+				drain();
+			}
+			writeTrailer(out);
+		} finally {
+			executor.shutdownNow();
+			out.close();
+		}
+	}
+
+	private void submit(boolean last) throws IOException {
+		if (previousBlock == null) {
+			writeHeader(out); // first block
+		}
+
+		byte[] data = block;
+		int dataLength = length;
+		byte[] dictionary = previousBlock;
+		int dictionaryLength = previousLength;
+		pending.add(executor.submit(() -> compress(data, dataLength, dictionary, dictionaryLength, last)));
+
+		previousBlock = data;
+		previousLength = dataLength;
+		block = new byte[blockSize];
+		length = 0;
+
+		// limit the number of blocks held in memory
+		while (pending.size() > 2 * threads) {
+			drain();
+		}
+	}
+
+	private void drain() throws IOException {
+		try {
+			out.write(pending.poll().get());
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException(e.getMessage());
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause());
+		}
+	}
+
+}
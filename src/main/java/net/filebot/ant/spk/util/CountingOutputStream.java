@@ -0,0 +1,41 @@
+package net.filebot.ant.spk.util;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+public class CountingOutputStream extends FilterOutputStream {
+
+	private long count = 0;
+	private boolean closed = false;
+
+	public CountingOutputStream(OutputStream out) {
+		super(out);
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		out.write(b);
+		count++;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		out.write(b, off, len);
+		count += len;
+	}
+
+	@Override
+	public void close() throws IOException {
+		// may be closed more than once (e.g. by TarOutputStream)
+		if (!closed) {
+			closed = true;
+			super.close();
+		}
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+}
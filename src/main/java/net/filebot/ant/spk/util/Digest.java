@@ -1,14 +1,26 @@
 package net.filebot.ant.spk.util;
 
 import java.io.File;
+import java.io.IOException;
 import java.math.BigInteger;
-import java.nio.file.Files;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.tools.ant.BuildException;
 
 public class Digest {
 
+	public static final int BUFFER_SIZE = 1024 * 1024;
+
 	public static String md5(File file) {
 		return digest(file, "MD5");
 	}
@@ -18,16 +30,94 @@ public class Digest {
 	}
 
 	public static String digest(File file, String algorithm) {
-		try {
-			MessageDigest digest = MessageDigest.getInstance(algorithm);
-			digest.update(Files.readAllBytes(file.toPath()));
+		return digest(file, false, algorithm).get(algorithm);
+	}
+
+	/**
+	 * Compute multiple digests in a single pass over the given file, optionally with each algorithm running on its own thread.
+	 */
+	public static Map<String, String> digest(File file, boolean parallel, String... algorithms) {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			MessageDigest[] digests = new MessageDigest[algorithms.length];
+			for (int i = 0; i < algorithms.length; i++) {
+				digests[i] = MessageDigest.getInstance(algorithms[i]);
+			}
+
+			if (parallel && digests.length > 1 && channel.size() > BUFFER_SIZE) {
+				updateParallel(channel, digests);
+			} else {
+				update(channel, digests);
+			}
+
+			Map<String, String> hash = new LinkedHashMap<String, String>(algorithms.length);
+			for (int i = 0; i < algorithms.length; i++) {
+				hash.put(algorithms[i], hex(digests[i].digest()));
+			}
+			return hash;
+		} catch (Exception e) {
+			throw new BuildException(e);
+		}
+	}
 
-			// as hex string (e.g. 16 bytes = 32 hex digits)
-			int digits = 2 * digest.getDigestLength();
-			return String.format("%0" + digits + "x", new BigInteger(1, digest.digest()));
+	public static MessageDigest getMessageDigest(String algorithm) {
+		try {
+			return MessageDigest.getInstance(algorithm);
 		} catch (Exception e) {
 			throw new BuildException(e);
 		}
 	}
 
+	public static String hex(byte[] digest) {
+		// as hex string (e.g. 16 bytes = 32 hex digits)
+		int digits = 2 * digest.length;
+		return String.format("%0" + digits + "x", new BigInteger(1, digest));
+	}
+
+	private static void update(FileChannel channel, MessageDigest... digests) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+		while (read(channel, buffer)) {
+			for (MessageDigest digest : digests) {
+				digest.update(buffer.array(), 0, buffer.limit());
+			}
+		}
+	}
+
+	private static void updateParallel(FileChannel channel, MessageDigest... digests) throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(digests.length);
+		try {
+			// double buffering so that the next chunk is read while the previous chunk is being hashed
+			ByteBuffer[] buffers = { ByteBuffer.allocate(BUFFER_SIZE), ByteBuffer.allocate(BUFFER_SIZE) };
+			List<Future<?>> pending = new ArrayList<Future<?>>(digests.length);
+
+			for (int i = 0; read(channel, buffers[i % 2]); i++) {
+				ByteBuffer buffer = buffers[i % 2];
+
+				// each digest must be updated in order
+				for (Future<?> f : pending) {
+					f.get();
+				}
+				pending.clear();
+
+				for (MessageDigest digest : digests) {
+					pending.add(executor.submit(() -> digest.update(buffer.array(), 0, buffer.limit())));
+				}
+			}
+
+			for (Future<?> f : pending) {
+				f.get();
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private static boolean read(FileChannel channel, ByteBuffer buffer) throws IOException {
+		buffer.clear();
+		while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+			// fill buffer until EOF
+		}
+		buffer.flip();
+		return buffer.hasRemaining();
+	}
+
 }
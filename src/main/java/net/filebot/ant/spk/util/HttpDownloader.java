@@ -0,0 +1,99 @@
+package net.filebot.ant.spk.util;
+
+import static java.nio.charset.StandardCharsets.*;
+import static java.nio.file.StandardCopyOption.*;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.Date;
+
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * Download files via a shared pool of keep-alive connections. Files that already exist locally are only downloaded again if they have been modified since.
+ */
+public class HttpDownloader implements Closeable {
+
+	private final CloseableHttpClient httpClient;
+
+	public HttpDownloader(int connections) {
+		httpClient = HttpClientBuilder.create().setMaxConnTotal(connections).setMaxConnPerRoute(connections).build();
+	}
+
+	/**
+	 * Returns true if the file has been downloaded, or false if the local file is up to date.
+	 */
+	public boolean download(URL url, File file) throws IOException {
+		return download(url, file, null);
+	}
+
+	/**
+	 * Download file and keep the entity tag of the downloaded file in the given etag file (if any) for revalidation.
+	 */
+	public boolean download(URL url, File file, File etag) throws IOException {
+		HttpGet httpGet = new HttpGet(url.toString());
+		if (file.exists()) {
+			httpGet.setHeader(HttpHeaders.IF_MODIFIED_SINCE, DateUtils.formatDate(new Date(file.lastModified())));
+			if (etag != null && etag.exists()) {
+				httpGet.setHeader(HttpHeaders.IF_NONE_MATCH, new String(Files.readAllBytes(etag.toPath()), UTF_8));
+			}
+		}
+
+		try (CloseableHttpResponse response = httpClient.execute(httpGet)) {
+			int status = response.getStatusLine().getStatusCode();
+			if (status == HttpStatus.SC_NOT_MODIFIED) {
+				EntityUtils.consume(response.getEntity());
+				return false;
+			}
+			if (status != HttpStatus.SC_OK) {
+				EntityUtils.consume(response.getEntity());
+				throw new IOException(String.format("Failed to download %s: %s", url, response.getStatusLine()));
+			}
+
+			// write to temporary file first so that an interrupted download will not leave behind a corrupted file
+			file.getAbsoluteFile().getParentFile().mkdirs();
+			File part = new File(file.getPath() + ".part");
+			try (OutputStream out = Files.newOutputStream(part.toPath())) {
+				response.getEntity().writeTo(out);
+			}
+			Files.move(part.toPath(), file.toPath(), REPLACE_EXISTING);
+
+			if (etag != null) {
+				Header value = response.getFirstHeader(HttpHeaders.ETAG);
+				if (value != null) {
+					Files.write(etag.toPath(), value.getValue().getBytes(UTF_8));
+				} else {
+					etag.delete();
+				}
+			}
+
+			// keep remote timestamp for conditional requests
+			Header lastModified = response.getFirstHeader(HttpHeaders.LAST_MODIFIED);
+			if (lastModified != null) {
+				Date date = DateUtils.parseDate(lastModified.getValue());
+				if (date != null) {
+					file.setLastModified(date.getTime());
+				}
+			}
+			return true;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		httpClient.close();
+	}
+
+}
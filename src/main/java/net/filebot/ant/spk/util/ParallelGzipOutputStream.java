@@ -0,0 +1,90 @@
+package net.filebot.ant.spk.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Multi-threaded gzip compression similar to pigz. Each block is deflated independently with the tail of the previous block as preset dictionary, and all blocks are joined into a single gzip member.
+ */
+public class ParallelGzipOutputStream extends BlockCompressionOutputStream {
+
+	public static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+
+	private static final int DICTIONARY_SIZE = 32 * 1024;
+	private static final byte[] HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0 };
+
+	private final int level;
+
+	private final CRC32 crc = new CRC32();
+	private long size = 0;
+
+	public ParallelGzipOutputStream(OutputStream out, int threads, int blockSize) {
+		this(out, threads, blockSize, Deflater.DEFAULT_COMPRESSION);
+	}
+
+	public ParallelGzipOutputStream(OutputStream out, int threads, int blockSize, int level) {
+		super(out, threads, blockSize);
+		this.level = level;
+	}
+
+	@Override
+	protected byte[] compress(byte[] block, int length, byte[] previousBlock, int previousLength, boolean last) throws IOException {
+		Deflater deflater = new Deflater(level, true);
+		try {
+			if (previousBlock != null) {
+				int n = Math.min(previousLength, DICTIONARY_SIZE);
+				deflater.setDictionary(previousBlock, previousLength - n, n);
+			}
+			deflater.setInput(block, 0, length);
+
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(length / 2 + 64);
+			byte[] buffer = new byte[64 * 1024];
+
+			if (last) {
+				deflater.finish();
+				while (!deflater.finished()) {
+					bytes.write(buffer, 0, deflater.deflate(buffer));
+				}
+			} else {
+				// sync flush so that the next block starts at a byte boundary
+				int n;
+				do {
+					n = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+					bytes.write(buffer, 0, n);
+				} while (n == buffer.length);
+			}
+
+			return bytes.toByteArray();
+		} finally {
+			deflater.end();
+		}
+	}
+
+	@Override
+	protected void update(byte[] b, int off, int len) {
+		crc.update(b, off, len);
+		size += len;
+	}
+
+	@Override
+	protected void writeHeader(OutputStream out) throws IOException {
+		out.write(HEADER);
+	}
+
+	@Override
+	protected void writeTrailer(OutputStream out) throws IOException {
+		writeInt(out, crc.getValue());
+		writeInt(out, size);
+	}
+
+	private static void writeInt(OutputStream out, long value) throws IOException {
+		// little endian, modulo 2^32
+		for (int i = 0; i < 4; i++) {
+			out.write((int) (value >>> (8 * i)) & 0xFF);
+		}
+	}
+
+}
@@ -0,0 +1,42 @@
+package net.filebot.ant.spk.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.tukaani.xz.LZMA2Options;
+import org.tukaani.xz.XZOutputStream;
+
+/**
+ * Multi-threaded xz compression. Each block is compressed into an independent xz stream, and concatenated xz streams are valid xz files.
+ */
+public class ParallelXZOutputStream extends BlockCompressionOutputStream {
+
+	public static final int DEFAULT_BLOCK_SIZE = 24 * 1024 * 1024;
+
+	private final int preset;
+
+	public ParallelXZOutputStream(OutputStream out, int threads, int blockSize) {
+		this(out, threads, blockSize, LZMA2Options.PRESET_DEFAULT);
+	}
+
+	public ParallelXZOutputStream(OutputStream out, int threads, int blockSize, int preset) {
+		super(out, threads, blockSize);
+		this.preset = preset < 0 ? LZMA2Options.PRESET_DEFAULT : preset;
+	}
+
+	@Override
+	protected byte[] compress(byte[] block, int length, byte[] previousBlock, int previousLength, boolean last) throws IOException {
+		// skip empty trailing block
+		if (length == 0 && previousBlock != null) {
+			return new byte[0];
+		}
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(length / 4 + 64);
+		try (XZOutputStream xz = new XZOutputStream(bytes, new LZMA2Options(preset))) {
+			xz.write(block, 0, length);
+		}
+		return bytes.toByteArray();
+	}
+
+}
@@ -0,0 +1,54 @@
+package net.filebot.ant.spk.util;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Hold back and finally discard the last n bytes written to the stream.
+ */
+public class TruncateOutputStream extends FilterOutputStream {
+
+	private final byte[] tail;
+	private int length = 0;
+	private boolean closed = false;
+
+	public TruncateOutputStream(OutputStream out, int n) {
+		super(out);
+		this.tail = new byte[n];
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		// pass on everything but the last n bytes
+		int n = length + len - tail.length;
+		if (n > 0) {
+			int t = Math.min(n, length);
+			out.write(tail, 0, t);
+			System.arraycopy(tail, t, tail, 0, length - t);
+			length -= t;
+
+			out.write(b, off, n - t);
+			off += n - t;
+			len -= n - t;
+		}
+
+		System.arraycopy(b, off, tail, length, len);
+		length += len;
+	}
+
+	@Override
+	public void close() throws IOException {
+		// may be closed more than once (e.g. by TarOutputStream)
+		if (!closed) {
+			closed = true;
+			super.close();
+		}
+	}
+
+}